@@ -0,0 +1,70 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.Consumer;
+import org.apache.pulsar.broker.service.Subscription;
+import org.apache.pulsar.common.api.proto.CommandAck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Acks the entries of an at-most-once consumer as soon as they are sent on the stream, so that the client never
+ * sends acks.
+ *
+ * <p>The entries of a dispatch are acked with a single command: cumulatively up to the last entry for Exclusive and
+ * Failover subscriptions, individually for Shared and Key_Shared subscriptions.
+ */
+class AckOnDelivery implements SentEntriesListener {
+
+    private static final Logger log = LoggerFactory.getLogger(AckOnDelivery.class);
+
+    private final CompletableFuture<Consumer> consumerFuture;
+
+    AckOnDelivery(CompletableFuture<Consumer> consumerFuture) {
+        this.consumerFuture = consumerFuture;
+    }
+
+    @Override
+    public void entriesSent(List<PositionImpl> positions) {
+        Consumer consumer = consumerFuture.getNow(null);
+        if (consumer == null || positions.isEmpty()) {
+            return;
+        }
+        CommandAck ack = new CommandAck().setConsumerId(consumer.consumerId());
+        if (Subscription.isIndividualAckMode(consumer.subType())) {
+            ack.setAckType(CommandAck.AckType.Individual);
+            for (PositionImpl position : positions) {
+                ack.addMessageId().setLedgerId(position.getLedgerId()).setEntryId(position.getEntryId());
+            }
+        } else {
+            PositionImpl last = positions.get(0);
+            for (PositionImpl position : positions) {
+                if (position.compareTo(last) > 0) {
+                    last = position;
+                }
+            }
+            ack.setAckType(CommandAck.AckType.Cumulative);
+            ack.addMessageId().setLedgerId(last.getLedgerId()).setEntryId(last.getEntryId());
+        }
+        consumer.messageAcked(ack).exceptionally(e -> {
+            log.warn("[{}] Failed to ack {} delivered messages: {}", consumer, positions.size(), e.getMessage());
+            return null;
+        });
+    }
+}
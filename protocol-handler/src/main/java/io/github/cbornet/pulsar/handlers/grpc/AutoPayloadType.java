@@ -0,0 +1,110 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe;
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import org.apache.pulsar.broker.PulsarService;
+import org.apache.pulsar.broker.loadbalance.LoadManager;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Chooses the payload type of each message sent to a consumer that subscribed with the AUTO payload type.
+ *
+ * <p>A message is sent as MESSAGES unless it is encrypted, it is bigger than the max decoded size once uncompressed,
+ * or it is compressed while the broker CPU usage is above the max broker CPU usage. In these cases it is sent as
+ * BINARY and the client decodes it. The CPU usage is the one reported by the load manager of the broker.
+ */
+class AutoPayloadType {
+
+    private static final Logger log = LoggerFactory.getLogger(AutoPayloadType.class);
+
+    private final long maxDecodedSize;
+    private final int maxBrokerCpuUsage;
+    private final DoubleSupplier brokerCpuUsage;
+
+    AutoPayloadType(CommandSubscribe subscribe, DoubleSupplier brokerCpuUsage) {
+        this(Integer.toUnsignedLong(subscribe.getAutoPayloadMaxDecodedSize()),
+                subscribe.getAutoPayloadMaxBrokerCpuUsage(), brokerCpuUsage);
+    }
+
+    AutoPayloadType(long maxDecodedSize, int maxBrokerCpuUsage, DoubleSupplier brokerCpuUsage) {
+        this.maxDecodedSize = maxDecodedSize;
+        this.maxBrokerCpuUsage = maxBrokerCpuUsage;
+        this.brokerCpuUsage = brokerCpuUsage;
+    }
+
+    /**
+     * Returns the payload type of a message.
+     *
+     * @param metadata the metadata of the message or null if it couldn't be parsed
+     * @param size the size of the entry data
+     */
+    PayloadType select(MessageMetadata metadata, int size) {
+        if (metadata == null || metadata.getEncryptionKeysCount() > 0) {
+            return PayloadType.BINARY;
+        }
+        boolean compressed = metadata.getCompression() != CompressionType.NONE;
+        long decodedSize = compressed ? metadata.getUncompressedSize() : size;
+        if (maxDecodedSize > 0 && decodedSize > maxDecodedSize) {
+            return PayloadType.BINARY;
+        }
+        if (compressed && maxBrokerCpuUsage > 0 && brokerCpuUsage.getAsDouble() >= maxBrokerCpuUsage) {
+            return PayloadType.BINARY;
+        }
+        return PayloadType.MESSAGES;
+    }
+
+    /**
+     * Returns the CPU usage of the broker in percent from the load report of its load manager. The report is generated
+     * at most once per host usage check interval of the load manager since the CPU usage isn't sampled more often.
+     */
+    static DoubleSupplier newBrokerCpuUsage(PulsarService pulsar) {
+        long samplingIntervalNanos =
+                TimeUnit.MINUTES.toNanos(pulsar.getConfiguration().getLoadBalancerHostUsageCheckIntervalMinutes());
+        return new DoubleSupplier() {
+            private volatile long lastSampleTime = System.nanoTime() - samplingIntervalNanos;
+            private volatile double cpuUsage = 0;
+
+            @Override
+            public double getAsDouble() {
+                long now = System.nanoTime();
+                if (now - lastSampleTime >= samplingIntervalNanos) {
+                    lastSampleTime = now;
+                    cpuUsage = getCpuUsage(pulsar);
+                }
+                return cpuUsage;
+            }
+        };
+    }
+
+    private static double getCpuUsage(PulsarService pulsar) {
+        LoadManager loadManager = pulsar.getLoadManager().get();
+        if (loadManager == null) {
+            return 0;
+        }
+        try {
+            return loadManager.generateLoadReport().getCpu().percentUsage();
+        } catch (Exception e) {
+            log.warn("Failed to get the CPU usage of the broker", e);
+            return 0;
+        }
+    }
+}
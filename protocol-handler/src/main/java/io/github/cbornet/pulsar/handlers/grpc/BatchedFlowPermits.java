@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.grpc.stub.CallStreamObserver;
+import org.apache.pulsar.broker.service.Consumer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives the flow permits of a consumer back by batches instead of one by one.
+ *
+ * <p>The permits of the messages sent on the stream are accumulated and returned to the consumer once half of the
+ * window has been sent and the stream is ready, the same way the Pulsar client refills its receiver queue.
+ * The whole window is given when the stream first becomes ready.
+ */
+class BatchedFlowPermits {
+
+    private final CallStreamObserver<?> responseObserver;
+    private final CompletableFuture<Consumer> consumerFuture;
+    private final int refillThreshold;
+    // Permits of the messages sent on the stream that were not given back yet to the consumer
+    private final AtomicInteger pendingPermits;
+    // Pending permits for which the inbound messages were already requested
+    private final AtomicInteger requestedPermits = new AtomicInteger();
+
+    BatchedFlowPermits(CallStreamObserver<?> responseObserver, CompletableFuture<Consumer> consumerFuture,
+            int window) {
+        this.responseObserver = responseObserver;
+        this.consumerFuture = consumerFuture;
+        this.refillThreshold = Math.max(1, window / 2);
+        this.pendingPermits = new AtomicInteger(window);
+    }
+
+    /**
+     * Called when messages have been sent on the stream.
+     */
+    void messagesSent(int numMessages) {
+        messagesSent(numMessages, false);
+    }
+
+    /**
+     * Called when messages have been sent on the stream. The inbound messages are not requested again for the
+     * messages for which they were already requested.
+     */
+    void messagesSent(int numMessages, boolean inboundRequested) {
+        if (inboundRequested) {
+            requestedPermits.addAndGet(numMessages);
+        }
+        pendingPermits.addAndGet(numMessages);
+        refill();
+    }
+
+    /**
+     * Called when the stream becomes ready to accept more messages.
+     */
+    void onReady() {
+        refill();
+    }
+
+    private void refill() {
+        while (true) {
+            int permits = pendingPermits.get();
+            if (permits < refillThreshold || !responseObserver.isReady()) {
+                return;
+            }
+            if (pendingPermits.compareAndSet(permits, 0)) {
+                consumerFuture.thenAccept(consumer -> consumer.flowPermits(permits));
+                int requested = takeRequestedPermits(permits);
+                if (permits > requested) {
+                    responseObserver.request(permits - requested);
+                }
+                return;
+            }
+        }
+    }
+
+    private int takeRequestedPermits(int permits) {
+        while (true) {
+            int requested = requestedPermits.get();
+            int taken = Math.min(requested, permits);
+            if (requestedPermits.compareAndSet(requested, requested - taken)) {
+                return taken;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck;
+import org.apache.pulsar.broker.service.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Coalesces the individual acks of the consumer of a stream into a single call to {@link Consumer#messageAcked}.
+ *
+ * <p>The pending acks are given to the consumer by a task submitted to the executor when the first ack is added, so
+ * that all the acks added before the task runs update the cursor once. When the acks are read on the thread of the
+ * executor, as with the event loops of the gRPC servers, these are the acks read during the same run of the executor.
+ * The pending acks must also be flushed before handling any other command of the consumer so that the order of the
+ * commands is kept.
+ */
+class CoalescedAcks {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescedAcks.class);
+
+    private final Executor executor;
+    // Notified of the coalesced acks, may be null
+    private final UnackedMessageTracker unackedMessageTracker;
+    private Consumer pendingConsumer = null;
+    private org.apache.pulsar.common.api.proto.CommandAck pendingAck = null;
+    // The number of entries of the ack ranges of the pending acks
+    private int pendingAckRangesEntries = 0;
+
+    CoalescedAcks(Executor executor) {
+        this(executor, null);
+    }
+
+    CoalescedAcks(Executor executor, UnackedMessageTracker unackedMessageTracker) {
+        this.executor = executor;
+        this.unackedMessageTracker = unackedMessageTracker;
+    }
+
+    /**
+     * Returns true if an ack can be coalesced with others: it is an individual ack without request id, transaction,
+     * validation error nor properties.
+     */
+    static boolean canCoalesce(CommandAck ack) {
+        return ack.getAckType() == CommandAck.AckType.Individual
+                && !ack.hasRequestId()
+                && !ack.hasTxnidLeastBits()
+                && !ack.hasTxnidMostBits()
+                && !ack.hasValidationError()
+                && ack.getPropertiesCount() == 0;
+    }
+
+    /**
+     * Adds an ack that {@link #canCoalesce can be coalesced}.
+     *
+     * The pending acks are flushed first if the entries of their ack ranges and of the ack ranges of this ack exceed
+     * {@link Commands#MAX_ACK_RANGES_ENTRIES}, so that a coalesced ack doesn't expand more entries than a single ack.
+     *
+     * @throws IllegalArgumentException if the ack ranges are invalid or too big
+     */
+    synchronized void add(Consumer consumer, CommandAck ack) {
+        int ackRangesEntries = Commands.getAckRangesEntries(ack);
+        if (pendingAckRangesEntries + ackRangesEntries > Commands.MAX_ACK_RANGES_ENTRIES) {
+            flush();
+        }
+        if (pendingAck == null) {
+            pendingConsumer = consumer;
+            pendingAck = new org.apache.pulsar.common.api.proto.CommandAck()
+                    .setConsumerId(consumer.consumerId())
+                    .setAckType(org.apache.pulsar.common.api.proto.CommandAck.AckType.Individual);
+            executor.execute(this::flush);
+        }
+        Commands.addAckedMessageIds(ack, pendingAck);
+        pendingAckRangesEntries += ackRangesEntries;
+    }
+
+    /**
+     * Gives the pending acks to the consumer.
+     */
+    synchronized void flush() {
+        if (pendingAck == null) {
+            return;
+        }
+        Consumer consumer = pendingConsumer;
+        org.apache.pulsar.common.api.proto.CommandAck ack = pendingAck;
+        pendingConsumer = null;
+        pendingAck = null;
+        pendingAckRangesEntries = 0;
+        if (ack.getMessageIdsCount() == 0) {
+            return;
+        }
+        if (unackedMessageTracker != null) {
+            unackedMessageTracker.acked(ack);
+        }
+        consumer.messageAcked(ack).exceptionally(e -> {
+            log.warn("[{}] Failed to ack {} messages: {}", consumer, ack.getMessageIdsCount(), e.getMessage());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageMetadata;
+import io.github.cbornet.pulsar.handlers.grpc.api.MetadataAndPayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+
+/**
+ * A {@link CommandSend} received on a produce stream with its payload exposed as a {@link ByteBuf}.
+ *
+ * <p>When parsed by {@link CommandSendMarshaller}, the frame owns the buffer the message was read into and the
+ * payload is a slice of it. The bytes fields of the {@link CommandSend} also point into this buffer so they must not
+ * be used after the frame is released.
+ */
+class CommandSendFrame {
+
+    private static final int BINARY_METADATA_AND_PAYLOAD_TAG =
+            lengthDelimitedTag(CommandSend.BINARY_METADATA_AND_PAYLOAD_FIELD_NUMBER);
+    private static final int METADATA_AND_PAYLOAD_TAG =
+            lengthDelimitedTag(CommandSend.METADATA_AND_PAYLOAD_FIELD_NUMBER);
+    private static final int PAYLOAD_TAG = lengthDelimitedTag(MetadataAndPayload.PAYLOAD_FIELD_NUMBER);
+
+    private final CommandSend send;
+    private final ByteBuf buffer;
+    private final ByteBuf payload;
+    private final int payloadIndex;
+    private boolean overwritten;
+
+    private CommandSendFrame(CommandSend send, ByteBuf buffer, ByteBuf payload, int payloadIndex) {
+        this.send = send;
+        this.buffer = buffer;
+        this.payload = payload;
+        this.payloadIndex = payloadIndex;
+    }
+
+    /**
+     * Parses a serialized {@link CommandSend}. The frame takes ownership of the buffer.
+     */
+    static CommandSendFrame parse(ByteBuf buffer) throws IOException {
+        CodedInputStream input = UnsafeByteOperations.unsafeWrap(buffer.nioBuffer()).newCodedInput();
+        input.enableAliasing(true);
+        CommandSend send = CommandSend.parseFrom(input);
+
+        // Find where the payload is in the buffer so it can be sliced instead of copied
+        input = UnsafeByteOperations.unsafeWrap(buffer.nioBuffer()).newCodedInput();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == BINARY_METADATA_AND_PAYLOAD_TAG) {
+                return newFrame(send, buffer, input);
+            } else if (tag == METADATA_AND_PAYLOAD_TAG) {
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                while ((tag = input.readTag()) != 0) {
+                    if (tag == PAYLOAD_TAG) {
+                        return newFrame(send, buffer, input);
+                    }
+                    input.skipField(tag);
+                }
+                input.popLimit(oldLimit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        return new CommandSendFrame(send, buffer, null, -1);
+    }
+
+    private static CommandSendFrame newFrame(CommandSend send, ByteBuf buffer, CodedInputStream input)
+            throws IOException {
+        int length = input.readRawVarint32();
+        int payloadIndex = buffer.readerIndex() + input.getTotalBytesRead();
+        return new CommandSendFrame(send, buffer, buffer.slice(payloadIndex, length), payloadIndex);
+    }
+
+    /**
+     * Creates a frame from an already deserialized {@link CommandSend}.
+     */
+    static CommandSendFrame of(CommandSend send) {
+        ByteBuf payload;
+        switch (send.getSendOneofCase()) {
+            case BINARY_METADATA_AND_PAYLOAD:
+                payload = Unpooled.wrappedBuffer(send.getBinaryMetadataAndPayload().asReadOnlyByteBuffer());
+                break;
+            case METADATA_AND_PAYLOAD:
+                // The payload is only copied by the PayloadCompressor if it needs to be compressed
+                payload = Unpooled.wrappedBuffer(send.getMetadataAndPayload().getPayload().asReadOnlyByteBuffer());
+                break;
+            default:
+                payload = null;
+        }
+        return new CommandSendFrame(send, null, payload, -1);
+    }
+
+    /**
+     * Returns a copy of the metadata of a send command that doesn't point into the frame buffer, so it remains valid
+     * after the frame is released.
+     */
+    static MessageMetadata copyOf(MessageMetadata metadata) {
+        try {
+            return MessageMetadata.parseFrom(metadata.toByteArray());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int lengthDelimitedTag(int fieldNumber) {
+        return fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    /**
+     * Returns the parsed send command.
+     *
+     * <p>For a parsed frame, the bytes and string fields of the command are aliased to the frame buffer. They are only
+     * valid until the frame is released or {@link #prependToPayload(ByteBuf)} overwrites them. The scalar fields are
+     * copied and remain valid. The command can't be obtained from the frame once its bytes fields are invalid.
+     *
+     * @throws IllegalStateException if the frame has been released or its payload headers have been written
+     */
+    CommandSend getSend() {
+        if (overwritten || (buffer != null && buffer.refCnt() == 0)) {
+            throw new IllegalStateException("The send command of the frame is no longer valid");
+        }
+        return send;
+    }
+
+    /**
+     * Returns the payload of a BINARY or METADATA_AND_PAYLOAD send, or null for other sends.
+     * The returned buffer is not retained and is only valid until the frame is released.
+     */
+    ByteBuf getPayload() {
+        return payload;
+    }
+
+    /**
+     * Writes the headers in the frame buffer just before the payload, overwriting the bytes of the already parsed
+     * fields, and returns a retained buffer containing the headers followed by the payload. Once the headers have
+     * been written, the bytes fields of the command returned by {@link #getSend()} must not be used anymore.
+     *
+     * @return the headers and payload or null if the frame has not enough room before the payload for the headers
+     */
+    ByteBuf prependToPayload(ByteBuf headers) {
+        int headersSize = headers.readableBytes();
+        if (buffer == null || payload == null || payloadIndex - buffer.readerIndex() < headersSize) {
+            return null;
+        }
+        int index = payloadIndex - headersSize;
+        buffer.setBytes(index, headers, headers.readerIndex(), headersSize);
+        overwritten = true;
+        return buffer.retainedSlice(index, headersSize + payload.readableBytes());
+    }
+
+    CommandSendFrame retain() {
+        if (buffer != null) {
+            buffer.retain();
+        }
+        return this;
+    }
+
+    void release() {
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+}
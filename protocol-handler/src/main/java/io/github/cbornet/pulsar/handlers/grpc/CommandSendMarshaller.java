@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.netty.buffer.ByteBuf;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Marshaller for the requests of the produce RPC.
+ *
+ * <p>The request is read in a single pass into a pooled {@link ByteBuf} and the payload is handed to the broker as a
+ * slice of this buffer instead of being copied to the heap by the protobuf parser.
+ */
+class CommandSendMarshaller implements MethodDescriptor.Marshaller<CommandSendFrame> {
+
+    private static final MethodDescriptor.Marshaller<CommandSend> COMMAND_SEND_MARSHALLER =
+            ProtoUtils.marshaller(CommandSend.getDefaultInstance());
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    @Override
+    public InputStream stream(CommandSendFrame frame) {
+        return COMMAND_SEND_MARSHALLER.stream(frame.getSend());
+    }
+
+    @Override
+    public CommandSendFrame parse(InputStream stream) {
+        ByteBuf buffer;
+        try {
+            buffer = readFully(stream);
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Failed to read message").withCause(e).asRuntimeException();
+        }
+        try {
+            return CommandSendFrame.parse(buffer);
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+        }
+    }
+
+    private static ByteBuf readFully(InputStream stream) throws IOException {
+        ByteBuf buffer;
+        if (stream instanceof KnownLength) {
+            int size = stream.available();
+            buffer = PulsarByteBufAllocator.DEFAULT.buffer(size, size);
+        } else {
+            buffer = PulsarByteBufAllocator.DEFAULT.buffer();
+        }
+        try {
+            if (stream instanceof KnownLength) {
+                while (buffer.isWritable()) {
+                    if (buffer.writeBytes(stream, buffer.writableBytes()) < 0) {
+                        throw new EOFException("Unexpected end of message");
+                    }
+                }
+            } else {
+                while (buffer.writeBytes(stream, READ_CHUNK_SIZE) >= 0) {
+                    // Read until the end of the stream
+                }
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+    }
+}
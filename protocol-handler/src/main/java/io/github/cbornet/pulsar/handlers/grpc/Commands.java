@@ -14,6 +14,8 @@
 package io.github.cbornet.pulsar.handlers.grpc;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import io.github.cbornet.pulsar.handlers.grpc.api.AckRange;
 import io.github.cbornet.pulsar.handlers.grpc.api.AuthData;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck.AckType;
@@ -23,6 +25,9 @@ import io.github.cbornet.pulsar.handlers.grpc.api.CommandActiveConsumerChange;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAddPartitionToTxn;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAddPartitionToTxnResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAuthChallenge;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandCloseConsumer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandCloseProducer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandConsumerClosed;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandConsumerStats;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandConsumerStatsResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandEndTxn;
@@ -44,18 +49,28 @@ import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetTopicsOfNamespaceRes
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopic;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopicResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandMessage;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandMessages;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandNewTxn;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandNewTxnResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandPartitionedTopicMetadata;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandPartitionedTopicMetadataResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducerClosed;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducerSuccess;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandReachedEndOfTopic;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandRedeliverUnacknowledgedMessages;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSeek;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendError;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendPermits;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendReceipt;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendReceipts;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionConsumeInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionProducer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionSendResult;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionSubscribe;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe.InitialPosition;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe.SubType;
@@ -78,6 +93,8 @@ import io.github.cbornet.pulsar.handlers.grpc.api.PulsarGrpc;
 import io.github.cbornet.pulsar.handlers.grpc.api.Schema;
 import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
 import io.github.cbornet.pulsar.handlers.grpc.api.ServerError;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
 import io.github.cbornet.pulsar.handlers.grpc.api.SingleMessage;
 import io.github.cbornet.pulsar.handlers.grpc.api.SingleMessageMetadata;
 import io.github.cbornet.pulsar.handlers.grpc.api.TxnAction;
@@ -93,6 +110,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.pulsar.broker.service.Subscription;
 import org.apache.pulsar.client.api.KeySharedPolicy;
 import org.apache.pulsar.client.api.Range;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.compression.CompressionCodec;
 import org.apache.pulsar.common.compression.CompressionCodecProvider;
 import org.apache.pulsar.common.policies.data.stats.ConsumerStatsImpl;
@@ -120,6 +138,10 @@ import static org.apache.pulsar.common.protocol.Commands.serializeMetadataAndPay
 public class Commands {
 
     public static final short MAGIC_CRC_32_C = 0x0e01;
+    // Max number of entries of an AckRange
+    public static final int MAX_ACK_RANGE_ENTRIES = 65536;
+    // Max number of entries of all the AckRanges of an ack
+    public static final int MAX_ACK_RANGES_ENTRIES = 65536;
 
     private static final FastThreadLocal<org.apache.pulsar.common.api.proto.SingleMessageMetadata>
         LOCAL_SINGLE_MESSAGE_METADATA =
@@ -236,6 +258,20 @@ public class Commands {
     }
 
     public static SendResult newSendReceipt(long sequenceId, long highestId, long ledgerId, long entryId) {
+        return newSendReceipt(newCommandSendReceipt(sequenceId, highestId, ledgerId, entryId));
+    }
+
+    public static SendResult newSendReceipt(CommandSendReceipt sendReceipt) {
+        return SendResult.newBuilder().setSendReceipt(sendReceipt).build();
+    }
+
+    public static SendResult newSendReceipts(List<CommandSendReceipt> sendReceipts) {
+        CommandSendReceipts receipts = CommandSendReceipts.newBuilder().addAllReceipts(sendReceipts).build();
+        return SendResult.newBuilder().setSendReceipts(receipts).build();
+    }
+
+    public static CommandSendReceipt newCommandSendReceipt(long sequenceId, long highestId, long ledgerId,
+            long entryId) {
         CommandSendReceipt.Builder sendReceiptBuilder = CommandSendReceipt.newBuilder();
         sendReceiptBuilder.setSequenceId(sequenceId);
         sendReceiptBuilder.setHighestSequenceId(highestId);
@@ -244,8 +280,22 @@ public class Commands {
         messageIdBuilder.setEntryId(entryId);
         MessageIdData messageId = messageIdBuilder.build();
         sendReceiptBuilder.setMessageId(messageId);
-        CommandSendReceipt sendReceipt = sendReceiptBuilder.build();
-        return SendResult.newBuilder().setSendReceipt(sendReceipt).build();
+        return sendReceiptBuilder.build();
+    }
+
+    public static CommandSendReceipt newCommandSendReceipt(long sequenceId, long highestId, long ledgerId,
+            long entryId, int batchIndex, int batchSize) {
+        MessageIdData messageId = MessageIdData.newBuilder()
+                .setLedgerId(ledgerId)
+                .setEntryId(entryId)
+                .setBatchIndex(batchIndex)
+                .setBatchSize(batchSize)
+                .build();
+        return CommandSendReceipt.newBuilder()
+                .setSequenceId(sequenceId)
+                .setHighestSequenceId(highestId)
+                .setMessageId(messageId)
+                .build();
     }
 
     public static CommandProducer newProducer(String topic, String producerName,
@@ -574,8 +624,8 @@ public class Commands {
         return ConsumeOutput.newBuilder().setReachedEndOfTopic(CommandReachedEndOfTopic.newBuilder()).build();
     }
 
-    public static ConsumeOutput newMessage(MessageIdData.Builder messageIdBuilder, int redeliveryCount,
-            ByteBuf metadataAndPayload, long[] ackSet, PayloadType preferedPayloadType) throws IOException {
+    public static CommandMessage.Builder newMessageBuilder(MessageIdData.Builder messageIdBuilder, int redeliveryCount,
+            long[] ackSet) {
         CommandMessage.Builder msgBuilder = CommandMessage.newBuilder();
         msgBuilder.setMessageId(messageIdBuilder);
         if (redeliveryCount > 0) {
@@ -584,6 +634,57 @@ public class Commands {
         if (ackSet != null) {
             msgBuilder.addAllAckSet(SafeCollectionUtils.longArrayToList(ackSet));
         }
+        return msgBuilder;
+    }
+
+    public static ConsumeOutput newMessage(MessageIdData.Builder messageIdBuilder, int redeliveryCount,
+            ByteBuf metadataAndPayload, long[] ackSet, PayloadType preferedPayloadType) throws IOException {
+        return ConsumeOutput.newBuilder()
+                .setMessage(newCommandMessage(messageIdBuilder, redeliveryCount, metadataAndPayload, ackSet,
+                        preferedPayloadType))
+                .build();
+    }
+
+    public static ConsumeOutput newMessages(List<CommandMessage> messages) {
+        return ConsumeOutput.newBuilder()
+                .setMessages(CommandMessages.newBuilder().addAllMessages(messages))
+                .build();
+    }
+
+    public static CommandMessage newCommandMessage(MessageIdData.Builder messageIdBuilder, int redeliveryCount,
+            ByteBuf metadataAndPayload, long[] ackSet, PayloadType preferedPayloadType) throws IOException {
+        CommandMessage.Builder msgBuilder = newMessageBuilder(messageIdBuilder, redeliveryCount, ackSet);
+        setMessageBody(msgBuilder, metadataAndPayload, preferedPayloadType);
+        return msgBuilder.build();
+    }
+
+    /**
+     * Returns the serialized field of a {@link CommandMessage} containing the metadata and payload of an entry, in
+     * the given payload type. The other fields of the message can be prepended to the returned buffer.
+     */
+    public static ByteBuf newEncodedMessageBody(ByteBuf metadataAndPayload, PayloadType preferedPayloadType)
+            throws IOException {
+        CommandMessage.Builder msgBuilder = CommandMessage.newBuilder();
+        setMessageBody(msgBuilder, metadataAndPayload, preferedPayloadType);
+        // The message id is not set so the message only contains the body field
+        CommandMessage body = msgBuilder.buildPartial();
+        int size = body.getSerializedSize();
+        ByteBuf buffer = PulsarByteBufAllocator.DEFAULT.buffer(size, size);
+        try {
+            body.writeTo(CodedOutputStream.newInstance(buffer.nioBuffer(0, size)));
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        buffer.writerIndex(size);
+        return buffer;
+    }
+
+    private static void setMessageBody(CommandMessage.Builder msgBuilder, ByteBuf metadataAndPayload,
+            PayloadType preferedPayloadType) throws IOException {
+        if (preferedPayloadType == PayloadType.AUTO) {
+            throw new IllegalArgumentException("The AUTO payload type must be resolved for each message");
+        }
         if (preferedPayloadType == PayloadType.BINARY) {
             ByteString headersAndPayload = ByteString.copyFrom(metadataAndPayload.nioBuffer());
             msgBuilder.setBinaryMetadataAndPayload(headersAndPayload);
@@ -629,7 +730,6 @@ public class Commands {
                 msgBuilder.setMetadataAndPayload(metadataBuilder);
             }
         }
-        return ConsumeOutput.newBuilder().setMessage(msgBuilder).build();
     }
 
     public static boolean hasChecksum(ByteBuf buffer) {
@@ -882,6 +982,96 @@ public class Commands {
                 .setTxnidMostBits(txnIdMostBits).build();
     }
 
+    public static SessionInput newSessionProducer(long producerId, CommandProducer producer) {
+        return SessionInput.newBuilder()
+                .setProducer(CommandSessionProducer.newBuilder()
+                        .setProducerId(producerId)
+                        .setProducer(producer))
+                .build();
+    }
+
+    public static SessionInput newSessionSend(long producerId, CommandSend send) {
+        return SessionInput.newBuilder()
+                .setSend(CommandSessionSend.newBuilder()
+                        .setProducerId(producerId)
+                        .setSend(send))
+                .build();
+    }
+
+    public static SessionInput newCloseProducer(long producerId) {
+        return SessionInput.newBuilder()
+                .setCloseProducer(CommandCloseProducer.newBuilder().setProducerId(producerId))
+                .build();
+    }
+
+    public static SessionInput newSessionSubscribe(long consumerId, CommandSubscribe subscribe) {
+        return SessionInput.newBuilder()
+                .setSubscribe(CommandSessionSubscribe.newBuilder()
+                        .setConsumerId(consumerId)
+                        .setSubscribe(subscribe))
+                .build();
+    }
+
+    public static SessionInput newSessionConsumeInput(long consumerId, ConsumeInput input) {
+        return SessionInput.newBuilder()
+                .setConsumeInput(CommandSessionConsumeInput.newBuilder()
+                        .setConsumerId(consumerId)
+                        .setInput(input))
+                .build();
+    }
+
+    public static SessionInput newCloseConsumer(long consumerId) {
+        return SessionInput.newBuilder()
+                .setCloseConsumer(CommandCloseConsumer.newBuilder().setConsumerId(consumerId))
+                .build();
+    }
+
+    public static SessionOutput newSessionSendResult(long producerId, SendResult result) {
+        return SessionOutput.newBuilder()
+                .setSendResult(CommandSessionSendResult.newBuilder()
+                        .setProducerId(producerId)
+                        .setResult(result))
+                .build();
+    }
+
+    public static SessionOutput newSendPermits(long producerId, int permits) {
+        return SessionOutput.newBuilder()
+                .setSendPermits(CommandSendPermits.newBuilder()
+                        .setProducerId(producerId)
+                        .setPermits(permits))
+                .build();
+    }
+
+    public static SessionOutput newProducerClosed(long producerId, ServerError error, String message) {
+        CommandProducerClosed.Builder builder = CommandProducerClosed.newBuilder().setProducerId(producerId);
+        if (error != null) {
+            builder.setError(error);
+        }
+        if (message != null) {
+            builder.setMessage(message);
+        }
+        return SessionOutput.newBuilder().setProducerClosed(builder).build();
+    }
+
+    public static SessionOutput newSessionConsumeOutput(long consumerId, ConsumeOutput output) {
+        return SessionOutput.newBuilder()
+                .setConsumeOutput(CommandSessionConsumeOutput.newBuilder()
+                        .setConsumerId(consumerId)
+                        .setOutput(output))
+                .build();
+    }
+
+    public static SessionOutput newConsumerClosed(long consumerId, ServerError error, String message) {
+        CommandConsumerClosed.Builder builder = CommandConsumerClosed.newBuilder().setConsumerId(consumerId);
+        if (error != null) {
+            builder.setError(error);
+        }
+        if (message != null) {
+            builder.setMessage(message);
+        }
+        return SessionOutput.newBuilder().setConsumerClosed(builder).build();
+    }
+
     public static PulsarGrpc.PulsarStub attachProducerParams(PulsarGrpc.PulsarStub stub,
             CommandProducer producerParams) {
         Metadata headers = new Metadata();
@@ -1093,6 +1283,95 @@ public class Commands {
         return result;
     }
 
+    /**
+     * Adds the message ids and the entries of the ack ranges of an ack to a Pulsar ack.
+     *
+     * @throws IllegalArgumentException if the ack ranges are invalid (see {@link #getAckRangesEntries})
+     */
+    public static void addAckedMessageIds(CommandAck ack, org.apache.pulsar.common.api.proto.CommandAck result) {
+        getAckRangesEntries(ack);
+        for (int i = 0; i < ack.getMessageIdCount(); i++) {
+            org.apache.pulsar.common.api.proto.MessageIdData messageIdData = result.addMessageId();
+            copyMessageIdData(ack.getMessageId(i), messageIdData);
+        }
+        for (int i = 0; i < ack.getAckRangesCount(); i++) {
+            AckRange range = ack.getAckRanges(i);
+            long ledgerId = range.getLedgerId();
+            long firstEntryId = range.getFirstEntryId();
+            if (range.getEntriesBitsetCount() > 0) {
+                for (int word = 0; word < range.getEntriesBitsetCount(); word++) {
+                    long bits = range.getEntriesBitset(word);
+                    while (bits != 0) {
+                        int bit = Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        result.addMessageId()
+                                .setLedgerId(ledgerId)
+                                .setEntryId(firstEntryId + word * Long.SIZE + bit);
+                    }
+                }
+            } else {
+                int count = (int) (getLastEntryId(range) - firstEntryId) + 1;
+                for (int entry = 0; entry < count; entry++) {
+                    result.addMessageId()
+                            .setLedgerId(ledgerId)
+                            .setEntryId(firstEntryId + entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Validates the ack ranges of an ack and returns the number of entries they cover, before any expansion.
+     *
+     * @throws IllegalArgumentException if an ack range is invalid, has more than {@link #MAX_ACK_RANGE_ENTRIES}
+     *     entries, if the ranges have more than {@link #MAX_ACK_RANGES_ENTRIES} entries in total or if they are set on
+     *     an ack that is not individual
+     */
+    public static int getAckRangesEntries(CommandAck ack) {
+        if (ack.getAckRangesCount() > 0 && ack.getAckType() != CommandAck.AckType.Individual) {
+            throw new IllegalArgumentException("Ack ranges are only allowed on individual acks");
+        }
+        int entries = 0;
+        for (int i = 0; i < ack.getAckRangesCount(); i++) {
+            entries += validateAckRange(ack.getAckRanges(i));
+            if (entries > MAX_ACK_RANGES_ENTRIES) {
+                throw new IllegalArgumentException("Too many entries in the ack ranges");
+            }
+        }
+        return entries;
+    }
+
+    // Returns the number of entries of the range
+    private static int validateAckRange(AckRange range) {
+        long firstEntryId = range.getFirstEntryId();
+        // The entry ids are unsigned in the protocol so the ones above Long.MAX_VALUE are negative
+        if (firstEntryId < 0 || firstEntryId > Long.MAX_VALUE - MAX_ACK_RANGE_ENTRIES) {
+            throw new IllegalArgumentException("Invalid first entry id in ack range: " + firstEntryId);
+        }
+        if (range.getEntriesBitsetCount() > 0) {
+            if (range.getEntriesBitsetCount() > MAX_ACK_RANGE_ENTRIES / Long.SIZE) {
+                throw new IllegalArgumentException("Too many entries in ack range");
+            }
+            int entries = 0;
+            for (int word = 0; word < range.getEntriesBitsetCount(); word++) {
+                entries += Long.bitCount(range.getEntriesBitset(word));
+            }
+            return entries;
+        }
+        long lastEntryId = getLastEntryId(range);
+        if (lastEntryId < firstEntryId) {
+            throw new IllegalArgumentException("Last entry id before first entry id in ack range");
+        }
+        if (lastEntryId - firstEntryId >= MAX_ACK_RANGE_ENTRIES) {
+            throw new IllegalArgumentException("Too many entries in ack range");
+        }
+        return (int) (lastEntryId - firstEntryId) + 1;
+    }
+
+    private static long getLastEntryId(AckRange range) {
+        return range.hasLastEntryId() ? range.getLastEntryId() : range.getFirstEntryId();
+    }
+
     public static org.apache.pulsar.common.api.proto.CommandAck convertCommandAck(CommandAck ack, long consumerId) {
         if (ack == null) {
             return null;
@@ -1103,10 +1382,7 @@ public class Commands {
         if (ack.hasAckType()) {
             result.setAckType(convertAckType(ack.getAckType()));
         }
-        for (int i = 0; i < ack.getMessageIdCount(); i++) {
-            org.apache.pulsar.common.api.proto.MessageIdData messageIdData = result.addMessageId();
-            copyMessageIdData(ack.getMessageId(i), messageIdData);
-        }
+        addAckedMessageIds(ack, result);
         if (ack.hasValidationError()) {
             result.setValidationError(convertValidationError(ack.getValidationError()));
         }
@@ -1236,4 +1512,37 @@ public class Commands {
         }
         return result;
     }
+
+    /**
+     * Returns the metadata of a single message of a batch from the metadata of a message sent alone.
+     */
+    public static org.apache.pulsar.common.api.proto.SingleMessageMetadata newSingleMessageMetadataRecycled(
+            MessageMetadata messageMetadata) {
+        org.apache.pulsar.common.api.proto.SingleMessageMetadata result = LOCAL_SINGLE_MESSAGE_METADATA.get();
+        result.clear();
+
+        messageMetadata.getPropertiesList().forEach(
+            property -> result.addProperty().setKey(property.getKey()).setValue(property.getValue())
+        );
+        if (messageMetadata.hasPartitionKey()) {
+            result.setPartitionKey(messageMetadata.getPartitionKey());
+        }
+        if (messageMetadata.hasEventTime()) {
+            result.setEventTime(messageMetadata.getEventTime());
+        }
+        if (messageMetadata.hasPartitionKeyB64Encoded()) {
+            result.setPartitionKeyB64Encoded(messageMetadata.getPartitionKeyB64Encoded());
+        }
+        if (messageMetadata.hasOrderingKey()) {
+            result.setOrderingKey(Unpooled.wrappedBuffer(messageMetadata.getOrderingKey().asReadOnlyByteBuffer()));
+        }
+        result.setSequenceId(messageMetadata.getSequenceId());
+        if (messageMetadata.hasNullValue()) {
+            result.setNullValue(messageMetadata.getNullValue());
+        }
+        if (messageMetadata.hasNullPartitionKey()) {
+            result.setNullPartitionKey(messageMetadata.getNullPartitionKey());
+        }
+        return result;
+    }
 }
@@ -49,5 +49,14 @@ class Constants {
     public static final String GRPC_SERVICE_HOST_PROPERTY_NAME = "grpcServiceHost";
     public static final String GRPC_SERVICE_PORT_PROPERTY_NAME = "grpcServicePort";
     public static final String GRPC_SERVICE_PORT_TLS_PROPERTY_NAME = "grpcServicePortTls";
+    public static final String GRPC_SERVICE_TRANSPORT_PROPERTY_NAME = "grpcServiceTransport";
+    public static final String GRPC_SERVICE_NUM_ACCEPTOR_THREADS_PROPERTY_NAME = "grpcServiceNumAcceptorThreads";
+    public static final String GRPC_SERVICE_NUM_IO_THREADS_PROPERTY_NAME = "grpcServiceNumIOThreads";
+    public static final String GRPC_SERVICE_NUM_COMPRESSION_THREADS_PROPERTY_NAME =
+            "grpcServiceNumCompressionThreads";
+    public static final String GRPC_SERVICE_MESSAGE_BODY_CACHE_SIZE_MB_PROPERTY_NAME =
+            "grpcServiceMessageBodyCacheSizeMB";
+    public static final String GRPC_SERVICE_MAX_QUEUED_CONSUMER_BYTES_MB_PROPERTY_NAME =
+            "grpcServiceMaxQueuedConsumerBytesMB";
 
 }
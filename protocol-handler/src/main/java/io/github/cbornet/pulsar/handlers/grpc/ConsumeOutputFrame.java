@@ -0,0 +1,369 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandMessage;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandMessages;
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageMetadata;
+import io.github.cbornet.pulsar.handlers.grpc.api.MetadataAndPayload;
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link ConsumeOutput} to send on a consume stream.
+ *
+ * <p>Messages in BINARY and METADATA_AND_PAYLOAD formats are not built as protobuf objects. Instead the frame holds
+ * the message envelopes, encoded in the protobuf wire format from the message ids, interleaved with the retained
+ * entry data, which are written one after the other by {@link ConsumeOutputMarshaller}.
+ * The caller of {@code onNext} keeps the ownership of the frame and must release it once {@code onNext} returns.
+ */
+class ConsumeOutputFrame {
+
+    private final ConsumeOutput output;
+    private final ByteBuf content;
+
+    private ConsumeOutputFrame(ConsumeOutput output, ByteBuf content) {
+        this.output = output;
+        this.content = content;
+    }
+
+    static ConsumeOutputFrame of(ConsumeOutput output) {
+        return new ConsumeOutputFrame(output, null);
+    }
+
+    /**
+     * Creates a frame containing a {@link CommandMessage} with the entry data as binary metadata and payload, or as
+     * {@link MetadataAndPayload} for the METADATA_AND_PAYLOAD payload type.
+     * The entry data is retained by the frame.
+     */
+    static ConsumeOutputFrame newMessage(PayloadType payloadType, long ledgerId, long entryId, int partition,
+            int redeliveryCount, long[] ackSet, ByteBuf metadataAndPayload) {
+        CompositeByteBuf content = PulsarByteBufAllocator.DEFAULT.compositeBuffer(4);
+        try {
+            addMessage(content, ConsumeOutput.MESSAGE_FIELD_NUMBER, payloadType, ledgerId, entryId, partition,
+                    redeliveryCount, ackSet, metadataAndPayload);
+        } catch (RuntimeException e) {
+            content.release();
+            throw e;
+        }
+        return new ConsumeOutputFrame(null, content);
+    }
+
+    /**
+     * Creates a frame containing a {@link CommandMessage} with a body encoded by
+     * {@link Commands#newEncodedMessageBody}. The body is retained by the frame.
+     */
+    static ConsumeOutputFrame newEncodedMessage(long ledgerId, long entryId, int partition, int redeliveryCount,
+            long[] ackSet, ByteBuf encodedBody) {
+        CompositeByteBuf content = PulsarByteBufAllocator.DEFAULT.compositeBuffer(2);
+        addEncodedMessage(content, ConsumeOutput.MESSAGE_FIELD_NUMBER, ledgerId, entryId, partition,
+                redeliveryCount, ackSet, encodedBody);
+        return new ConsumeOutputFrame(null, content);
+    }
+
+    /**
+     * Returns the size of a message with a body encoded by {@link Commands#newEncodedMessageBody} once packed in
+     * {@link CommandMessages}.
+     */
+    static int getPackedEncodedMessageSize(long ledgerId, long entryId, int partition, int redeliveryCount,
+            long[] ackSet, ByteBuf encodedBody) {
+        return computeLengthDelimitedSize(getEnvelopeSize(ledgerId, entryId, partition, redeliveryCount, ackSet)
+                + encodedBody.readableBytes());
+    }
+
+    /**
+     * Returns the size of a message once packed in {@link CommandMessages}.
+     */
+    static int getPackedMessageSize(PayloadType payloadType, long ledgerId, long entryId, int partition,
+            int redeliveryCount, long[] ackSet, ByteBuf metadataAndPayload) {
+        return computeLengthDelimitedSize(getEnvelopeSize(ledgerId, entryId, partition, redeliveryCount, ackSet)
+                + getContentSize(payloadType, metadataAndPayload));
+    }
+
+    // The fields of the consume and session messages have numbers lower than 16 so their tags are encoded in a single
+    // byte
+    static int computeLengthDelimitedSize(int size) {
+        return 1 + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    /**
+     * Adds a message to the content of a frame and returns the size it takes in the frame.
+     *
+     * <p>For the METADATA_AND_PAYLOAD payload type, the serialized Pulsar metadata is spliced as is in the
+     * {@link MetadataAndPayload} since the gRPC {@link MessageMetadata} has the same field numbers.
+     */
+    private static int addMessage(CompositeByteBuf content, int fieldNumber, PayloadType payloadType, long ledgerId,
+            long entryId, int partition, int redeliveryCount, long[] ackSet, ByteBuf metadataAndPayload) {
+        int envelopeSize = getEnvelopeSize(ledgerId, entryId, partition, redeliveryCount, ackSet);
+        int messageSize = envelopeSize + getContentSize(payloadType, metadataAndPayload);
+        int tagSize = computeLengthDelimitedSize(messageSize) - messageSize;
+
+        if (payloadType == PayloadType.BINARY) {
+            int size = metadataAndPayload.readableBytes();
+            int headersSize = tagSize + envelopeSize + computeLengthDelimitedSize(size) - size;
+            ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(headersSize, headersSize);
+            writeLengthDelimitedTag(headers, fieldNumber, messageSize);
+            writeEnvelope(headers, ledgerId, entryId, partition, redeliveryCount, ackSet);
+            writeLengthDelimitedTag(headers, CommandMessage.BINARY_METADATA_AND_PAYLOAD_FIELD_NUMBER, size);
+            content.addComponent(true, headers);
+            content.addComponent(true, metadataAndPayload.retainedDuplicate());
+        } else if (payloadType == PayloadType.METADATA_AND_PAYLOAD) {
+            int metadataIndex = getMetadataIndex(metadataAndPayload);
+            int metadataSize = (int) metadataAndPayload.getUnsignedInt(metadataIndex - 4);
+            int payloadIndex = metadataIndex + metadataSize;
+            int payloadSize = metadataAndPayload.writerIndex() - payloadIndex;
+            int payloadTagSize = computeLengthDelimitedSize(payloadSize) - payloadSize;
+            int metadataAndPayloadSize = computeLengthDelimitedSize(metadataSize) + payloadSize + payloadTagSize;
+            int headersSize = tagSize + envelopeSize + computeLengthDelimitedSize(metadataAndPayloadSize)
+                    - metadataAndPayloadSize + computeLengthDelimitedSize(metadataSize) - metadataSize
+                    + payloadTagSize;
+
+            ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(headersSize, headersSize);
+            try {
+                writeLengthDelimitedTag(headers, fieldNumber, messageSize);
+                writeEnvelope(headers, ledgerId, entryId, partition, redeliveryCount, ackSet);
+                writeLengthDelimitedTag(headers, CommandMessage.METADATA_AND_PAYLOAD_FIELD_NUMBER,
+                        metadataAndPayloadSize);
+                writeLengthDelimitedTag(headers, MetadataAndPayload.METADATA_FIELD_NUMBER, metadataSize);
+                int payloadTagIndex = headers.writerIndex();
+                writeLengthDelimitedTag(headers, MetadataAndPayload.PAYLOAD_FIELD_NUMBER, payloadSize);
+
+                content.addComponent(true, headers.retainedSlice(0, payloadTagIndex));
+                content.addComponent(true, metadataAndPayload.retainedSlice(metadataIndex, metadataSize));
+                content.addComponent(true, headers.retainedSlice(payloadTagIndex, payloadTagSize));
+                content.addComponent(true, metadataAndPayload.retainedSlice(payloadIndex, payloadSize));
+            } finally {
+                headers.release();
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported payload type " + payloadType);
+        }
+        return tagSize + messageSize;
+    }
+
+    /**
+     * Adds a message with an encoded body to the content of a frame and returns the size it takes in the frame.
+     */
+    private static int addEncodedMessage(CompositeByteBuf content, int fieldNumber, long ledgerId, long entryId,
+            int partition, int redeliveryCount, long[] ackSet, ByteBuf encodedBody) {
+        int envelopeSize = getEnvelopeSize(ledgerId, entryId, partition, redeliveryCount, ackSet);
+        int messageSize = envelopeSize + encodedBody.readableBytes();
+        int tagSize = computeLengthDelimitedSize(messageSize) - messageSize;
+        int headersSize = tagSize + envelopeSize;
+        ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(headersSize, headersSize);
+        writeLengthDelimitedTag(headers, fieldNumber, messageSize);
+        writeEnvelope(headers, ledgerId, entryId, partition, redeliveryCount, ackSet);
+        content.addComponent(true, headers);
+        content.addComponent(true, encodedBody.retainedDuplicate());
+        return tagSize + messageSize;
+    }
+
+    /**
+     * Returns the size of the field of a {@link CommandMessage} containing the metadata and payload.
+     */
+    private static int getContentSize(PayloadType payloadType, ByteBuf metadataAndPayload) {
+        if (payloadType != PayloadType.METADATA_AND_PAYLOAD) {
+            return computeLengthDelimitedSize(metadataAndPayload.readableBytes());
+        }
+        int metadataIndex = getMetadataIndex(metadataAndPayload);
+        int metadataSize = (int) metadataAndPayload.getUnsignedInt(metadataIndex - 4);
+        int payloadSize = metadataAndPayload.writerIndex() - metadataIndex - metadataSize;
+        return computeLengthDelimitedSize(computeLengthDelimitedSize(metadataSize)
+                + computeLengthDelimitedSize(payloadSize));
+    }
+
+    /**
+     * Returns the index of the serialized metadata in entry data, after the checksum and the metadata size.
+     */
+    private static int getMetadataIndex(ByteBuf metadataAndPayload) {
+        int index = metadataAndPayload.readerIndex();
+        if (Commands.hasChecksum(metadataAndPayload)) {
+            // Magic number and checksum
+            index += 6;
+        }
+        return index + 4;
+    }
+
+    /**
+     * Returns the size of the fields of a {@link CommandMessage} preceding its metadata and payload.
+     */
+    private static int getEnvelopeSize(long ledgerId, long entryId, int partition, int redeliveryCount,
+            long[] ackSet) {
+        int size = computeLengthDelimitedSize(getMessageIdSize(ledgerId, entryId, partition));
+        if (redeliveryCount > 0) {
+            size += 1 + CodedOutputStream.computeUInt32SizeNoTag(redeliveryCount);
+        }
+        if (ackSet != null) {
+            for (long ack : ackSet) {
+                size += 1 + CodedOutputStream.computeInt64SizeNoTag(ack);
+            }
+        }
+        return size;
+    }
+
+    private static int getMessageIdSize(long ledgerId, long entryId, int partition) {
+        return 3 + CodedOutputStream.computeUInt64SizeNoTag(ledgerId)
+                + CodedOutputStream.computeUInt64SizeNoTag(entryId)
+                + CodedOutputStream.computeInt32SizeNoTag(partition);
+    }
+
+    /**
+     * Writes the fields of a {@link CommandMessage} preceding its metadata and payload.
+     */
+    private static void writeEnvelope(ByteBuf buffer, long ledgerId, long entryId, int partition,
+            int redeliveryCount, long[] ackSet) {
+        writeLengthDelimitedTag(buffer, CommandMessage.MESSAGE_ID_FIELD_NUMBER,
+                getMessageIdSize(ledgerId, entryId, partition));
+        writeVarintField(buffer, MessageIdData.LEDGERID_FIELD_NUMBER, ledgerId);
+        writeVarintField(buffer, MessageIdData.ENTRYID_FIELD_NUMBER, entryId);
+        // Negative int32 are sign extended to 64 bits
+        writeVarintField(buffer, MessageIdData.PARTITION_FIELD_NUMBER, partition);
+        if (redeliveryCount > 0) {
+            writeVarintField(buffer, CommandMessage.REDELIVERY_COUNT_FIELD_NUMBER, redeliveryCount);
+        }
+        if (ackSet != null) {
+            for (long ack : ackSet) {
+                writeVarintField(buffer, CommandMessage.ACK_SET_FIELD_NUMBER, ack);
+            }
+        }
+    }
+
+    static void writeLengthDelimitedTag(ByteBuf buffer, int fieldNumber, int size) {
+        buffer.writeByte(fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(buffer, size);
+    }
+
+    static void writeVarintField(ByteBuf buffer, int fieldNumber, long value) {
+        buffer.writeByte(fieldNumber << 3 | WireFormat.WIRETYPE_VARINT);
+        writeVarint(buffer, value);
+    }
+
+    private static void writeVarint(ByteBuf buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte((int) value);
+    }
+
+    /**
+     * Packs messages in a frame containing {@link CommandMessages}.
+     *
+     * <p>The envelopes are written directly in the wire format from the message ids, without building protobuf
+     * objects, and are interleaved with the retained entry data.
+     */
+    static class MessagesBuilder {
+        private CompositeByteBuf content = null;
+        private int size = 0;
+        private int count = 0;
+
+        /**
+         * Adds a message to the frame in the BINARY or METADATA_AND_PAYLOAD payload type. The entry data is retained by
+         * the frame.
+         */
+        void add(PayloadType payloadType, long ledgerId, long entryId, int partition, int redeliveryCount,
+                long[] ackSet, ByteBuf metadataAndPayload) {
+            if (content == null) {
+                // Never consolidate the components as it would copy the entries data
+                content = PulsarByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+            }
+            size += addMessage(content, CommandMessages.MESSAGES_FIELD_NUMBER, payloadType, ledgerId, entryId,
+                    partition, redeliveryCount, ackSet, metadataAndPayload);
+            count++;
+        }
+
+        /**
+         * Adds a message with a body encoded by {@link Commands#newEncodedMessageBody} to the frame. The body is
+         * retained by the frame.
+         */
+        void addEncoded(long ledgerId, long entryId, int partition, int redeliveryCount, long[] ackSet,
+                ByteBuf encodedBody) {
+            if (content == null) {
+                content = PulsarByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+            }
+            size += addEncodedMessage(content, CommandMessages.MESSAGES_FIELD_NUMBER, ledgerId, entryId, partition,
+                    redeliveryCount, ackSet, encodedBody);
+            count++;
+        }
+
+        /**
+         * Returns the size of the {@link CommandMessages} of the frame.
+         */
+        int size() {
+            return size;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Returns the frame of the messages added since the last call and resets the builder.
+         */
+        ConsumeOutputFrame build() {
+            int headerSize = 1 + CodedOutputStream.computeUInt32SizeNoTag(size);
+            ByteBuf header = PulsarByteBufAllocator.DEFAULT.buffer(headerSize, headerSize);
+            writeLengthDelimitedTag(header, ConsumeOutput.MESSAGES_FIELD_NUMBER, size);
+            CompositeByteBuf frameContent = content != null
+                    ? content : PulsarByteBufAllocator.DEFAULT.compositeBuffer(1);
+            frameContent.addComponent(true, 0, header);
+            content = null;
+            size = 0;
+            count = 0;
+            return new ConsumeOutputFrame(null, frameContent);
+        }
+    }
+
+    /**
+     * Returns the serialized content of the frame, or null if the frame only holds a {@link ConsumeOutput} object.
+     * The returned buffer must be released by the caller.
+     */
+    ByteBuf retainedContent() {
+        return content == null ? null : content.retainedDuplicate();
+    }
+
+    /**
+     * Returns the frame as a {@link ConsumeOutput} object. Serialized frames are parsed which involves a copy.
+     */
+    ConsumeOutput toConsumeOutput() {
+        if (output != null) {
+            return output;
+        }
+        try (InputStream stream = new ByteBufInputStream(retainedContent(), true)) {
+            return ConsumeOutput.parseFrom(stream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ConsumeOutput getOutput() {
+        return output;
+    }
+
+    void release() {
+        if (content != null) {
+            content.release();
+        }
+    }
+}
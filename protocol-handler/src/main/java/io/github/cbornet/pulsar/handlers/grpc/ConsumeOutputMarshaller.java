@@ -0,0 +1,139 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Marshaller for the responses of the consume RPC.
+ *
+ * <p>Serialized frames are streamed without building a protobuf copy of the entry: the transport drains the envelope
+ * and the entry buffer into its own buffers. gRPC only exposes them as an {@link OutputStream}, so this is not
+ * zero-copy: heap buffers are copied once into the transport buffers, and direct buffers are copied twice, first into
+ * a small reusable heap chunk then into the transport buffers, instead of through a heap array the size of the
+ * message.
+ */
+class ConsumeOutputMarshaller implements MethodDescriptor.Marshaller<ConsumeOutputFrame> {
+
+    private static final MethodDescriptor.Marshaller<ConsumeOutput> CONSUME_OUTPUT_MARSHALLER =
+            ProtoUtils.marshaller(ConsumeOutput.getDefaultInstance());
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final FastThreadLocal<byte[]> CHUNK = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    @Override
+    public InputStream stream(ConsumeOutputFrame frame) {
+        ByteBuf content = frame.retainedContent();
+        if (content == null) {
+            return CONSUME_OUTPUT_MARSHALLER.stream(frame.getOutput());
+        }
+        return new DrainableByteBufInputStream(content);
+    }
+
+    @Override
+    public ConsumeOutputFrame parse(InputStream stream) {
+        return ConsumeOutputFrame.of(CONSUME_OUTPUT_MARSHALLER.parse(stream));
+    }
+
+    /**
+     * An {@link InputStream} over a {@link ByteBuf} that is released once drained or closed.
+     */
+    static class DrainableByteBufInputStream extends InputStream implements Drainable, KnownLength {
+
+        private final ByteBuf buffer;
+        private boolean released = false;
+
+        DrainableByteBufInputStream(ByteBuf buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = buffer.readableBytes();
+            try {
+                for (ByteBuffer nioBuffer : buffer.nioBuffers()) {
+                    write(nioBuffer, target);
+                }
+                buffer.skipBytes(length);
+            } finally {
+                close();
+            }
+            return length;
+        }
+
+        private static void write(ByteBuffer source, OutputStream target) throws IOException {
+            if (source.hasArray()) {
+                target.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                return;
+            }
+            byte[] chunk = CHUNK.get();
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                target.write(chunk, 0, length);
+            }
+        }
+
+        @Override
+        public int read() {
+            if (released || !buffer.isReadable()) {
+                return -1;
+            }
+            return buffer.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (released || !buffer.isReadable()) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.readableBytes());
+            buffer.readBytes(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return released ? 0 : buffer.readableBytes();
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                buffer.release();
+            }
+        }
+    }
+}
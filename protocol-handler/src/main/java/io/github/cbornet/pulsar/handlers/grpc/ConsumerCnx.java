@@ -13,27 +13,46 @@
  */
 package io.github.cbornet.pulsar.handlers.grpc;
 
-import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
 import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.CallStreamObserver;
 import org.apache.pulsar.broker.authentication.AuthenticationDataSource;
 import org.apache.pulsar.broker.service.BrokerService;
 import org.apache.pulsar.broker.service.Consumer;
 import org.apache.pulsar.broker.service.PulsarCommandSender;
+import org.apache.pulsar.common.api.proto.CommandSubscribe.SubType;
 
 import java.net.SocketAddress;
 
 class ConsumerCnx extends AbstractGrpcCnx {
 
-    private final StreamObserver<ConsumeOutput> responseObserver;
+    private final CallStreamObserver<ConsumeOutputFrame> responseObserver;
     private final ConsumerCommandSender consumerCommandSender;
+    private final SentEntriesListener sentEntriesListener;
+    private final OutboundBytesLimiter outboundBytesLimiter;
+    private final Runnable resumeListener = this::writabilityChanged;
+    private volatile Consumer consumer;
+    // Set when a dispatcher has seen the stream not writable and must be notified when it becomes writable again
+    private volatile boolean notifyWritable = false;
 
     public ConsumerCnx(BrokerService service, SocketAddress remoteAddress, String authRole,
-            AuthenticationDataSource authenticationData, StreamObserver<ConsumeOutput> responseObserver,
-            PayloadType preferedPayloadType, java.util.function.Consumer<Integer> cb) {
+            AuthenticationDataSource authenticationData, CallStreamObserver<ConsumeOutputFrame> responseObserver,
+            PayloadType preferedPayloadType, int maxPackedMessagesSize, SentMessagesCallback cb) {
+        this(service, remoteAddress, authRole, authenticationData, responseObserver, preferedPayloadType, null,
+                maxPackedMessagesSize, null, null, null, cb);
+    }
+
+    public ConsumerCnx(BrokerService service, SocketAddress remoteAddress, String authRole,
+            AuthenticationDataSource authenticationData, CallStreamObserver<ConsumeOutputFrame> responseObserver,
+            PayloadType preferedPayloadType, AutoPayloadType autoPayloadType, int maxPackedMessagesSize,
+            MessageBodyCache messageBodyCache, SentEntriesListener sentEntriesListener,
+            OutboundBytesLimiter outboundBytesLimiter, SentMessagesCallback cb) {
         super(service, remoteAddress, authRole, authenticationData);
         this.responseObserver = responseObserver;
-        this.consumerCommandSender = new ConsumerCommandSender(responseObserver, preferedPayloadType, cb);
+        this.consumerCommandSender = new ConsumerCommandSender(responseObserver, preferedPayloadType,
+                autoPayloadType, maxPackedMessagesSize, messageBodyCache, sentEntriesListener, outboundBytesLimiter,
+                cb);
+        this.sentEntriesListener = sentEntriesListener;
+        this.outboundBytesLimiter = outboundBytesLimiter;
     }
 
     @Override
@@ -61,8 +80,73 @@ class ConsumerCnx extends AbstractGrpcCnx {
         return authenticationData;
     }
 
+    /**
+     * On Shared and Key_Shared subscriptions, the stream is writable as long as gRPC doesn't buffer too much data for
+     * it, the consumer has byte permits left and the consume streams are not paused by the outbound bytes limiter, so
+     * that dispatchers don't pick a consumer whose stream is backed up.
+     * Single active consumer dispatchers are already paced by the write future returned by the command sender.
+     */
+    @Override
+    public boolean isWritable() {
+        Consumer consumer = this.consumer;
+        if (consumer == null
+                || (consumer.subType() != SubType.Shared && consumer.subType() != SubType.Key_Shared)) {
+            return true;
+        }
+        boolean writable = consumerCommandSender.isWritable();
+        if (!writable) {
+            notifyWritable = true;
+        }
+        return writable;
+    }
+
+    void setConsumer(Consumer consumer) {
+        this.consumer = consumer;
+        if (outboundBytesLimiter != null) {
+            outboundBytesLimiter.addResumeListener(resumeListener);
+        }
+    }
+
+    @Override
+    public void removedConsumer(Consumer consumer) {
+        this.consumer = null;
+        if (outboundBytesLimiter != null) {
+            outboundBytesLimiter.removeResumeListener(resumeListener);
+        }
+        consumerCommandSender.completePendingWrites();
+        if (sentEntriesListener != null) {
+            sentEntriesListener.consumerRemoved();
+        }
+    }
+
     @Override
     public void closeConsumer(Consumer consumer) {
         responseObserver.onCompleted();
+        consumerCommandSender.completePendingWrites();
+    }
+
+    /**
+     * Called when the response stream becomes ready to accept more messages.
+     */
+    void onReady() {
+        writabilityChanged();
+    }
+
+    /**
+     * Gives byte permits to the consumer.
+     */
+    void addBytePermits(long bytePermits) {
+        consumerCommandSender.addBytePermits(bytePermits);
+        writabilityChanged();
+    }
+
+    private void writabilityChanged() {
+        consumerCommandSender.writabilityChanged();
+        Consumer consumer = this.consumer;
+        if (notifyWritable && consumer != null && consumerCommandSender.isWritable()) {
+            notifyWritable = false;
+            // Trigger a new read in case the dispatcher stopped because no consumer was writable
+            consumer.getSubscription().getDispatcher().consumerFlow(consumer, 0);
+        }
     }
 }
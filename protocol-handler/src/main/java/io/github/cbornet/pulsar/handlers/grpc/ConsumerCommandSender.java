@@ -13,66 +13,108 @@
  */
 package io.github.cbornet.pulsar.handlers.grpc;
 
-import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
-import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
 import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.CallStreamObserver;
 import io.netty.buffer.ByteBuf;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.pulsar.broker.service.EntryBatchIndexesAcks;
 import org.apache.pulsar.broker.service.EntryBatchSizes;
 import org.apache.pulsar.broker.service.RedeliveryTracker;
 import org.apache.pulsar.broker.service.Subscription;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
 import org.apache.pulsar.common.api.proto.ServerError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ConsumerCommandSender extends DefaultGrpcCommandSender {
 
     private static final Logger log = LoggerFactory.getLogger(ConsumerCommandSender.class);
 
-    private final StreamObserver<ConsumeOutput> responseObserver;
+    // Byte permits of a client that never sent any
+    private static final long UNLIMITED_BYTE_PERMITS = Long.MAX_VALUE;
+
+    private final CallStreamObserver<ConsumeOutputFrame> responseObserver;
     private final PayloadType preferedPayloadType;
-    private final Consumer<Integer> cb;
+    // Chooses the payload type of each message for the AUTO payload type, null otherwise
+    private final AutoPayloadType autoPayloadType;
+    private final int maxPackedMessagesSize;
+    private final MessageBodyCache messageBodyCache;
+    // Notified of the entries sent, may be null
+    private final SentEntriesListener sentEntriesListener;
+    // Broker-wide limit of the queued bytes, may be null
+    private final OutboundBytesLimiter outboundBytesLimiter;
+    private final SentMessagesCallback cb;
+    private Promise<Void> pendingWritePromise = null;
+    // Number of bytes the client can still receive. It can get negative since all the entries of a dispatch are sent.
+    private final AtomicLong bytePermits = new AtomicLong(UNLIMITED_BYTE_PERMITS);
+    // Messages sent while the consumer had no byte permits left, for which the callback was not called yet
+    private final AtomicInteger deferredSentMessages = new AtomicInteger();
+    // Bytes sent since the stream was last seen ready, counted in the outbound bytes limiter
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    public ConsumerCommandSender(CallStreamObserver<ConsumeOutputFrame> responseObserver,
+            PayloadType preferedPayloadType, int maxPackedMessagesSize, SentMessagesCallback cb) {
+        this(responseObserver, preferedPayloadType, null, maxPackedMessagesSize, null, null, null, cb);
+    }
 
-    public ConsumerCommandSender(StreamObserver<ConsumeOutput> responseObserver, PayloadType preferedPayloadType,
-            Consumer<Integer> cb) {
+    /**
+     * Creates the command sender. The AUTO payload type rules must be given if the prefered payload type is AUTO.
+     * If the message body cache is null, the entries are uncompressed and split for each consumer.
+     * The sent entries listener is notified of the entries of each dispatch once they are sent on the stream.
+     * If the outbound bytes limiter is null, the bytes queued on the stream are only bounded by the ready threshold
+     * of gRPC.
+     */
+    public ConsumerCommandSender(CallStreamObserver<ConsumeOutputFrame> responseObserver,
+            PayloadType preferedPayloadType, AutoPayloadType autoPayloadType, int maxPackedMessagesSize,
+            MessageBodyCache messageBodyCache, SentEntriesListener sentEntriesListener,
+            OutboundBytesLimiter outboundBytesLimiter, SentMessagesCallback cb) {
         this.responseObserver = responseObserver;
         this.preferedPayloadType = preferedPayloadType;
+        this.autoPayloadType = preferedPayloadType == PayloadType.AUTO ? autoPayloadType : null;
+        this.maxPackedMessagesSize = maxPackedMessagesSize;
+        this.messageBodyCache = messageBodyCache;
+        this.sentEntriesListener = sentEntriesListener;
+        this.outboundBytesLimiter = outboundBytesLimiter;
         this.cb = cb;
     }
 
     @Override
     public void sendActiveConsumerChange(long consumerId, boolean isActive) {
-        responseObserver.onNext(Commands.newActiveConsumerChange(isActive));
+        responseObserver.onNext(ConsumeOutputFrame.of(Commands.newActiveConsumerChange(isActive)));
     }
 
     @Override
     public void sendSuccess(long requestId) {
-        responseObserver.onNext(Commands.newSuccess(requestId));
+        responseObserver.onNext(ConsumeOutputFrame.of(Commands.newSuccess(requestId)));
     }
 
     @Override
     public void sendError(long requestId, ServerError error, String message) {
-        responseObserver.onNext(Commands.newError(requestId, Commands.convertServerError(error), message));
+        responseObserver.onNext(
+                ConsumeOutputFrame.of(Commands.newError(requestId, Commands.convertServerError(error), message)));
     }
 
     @Override
     public void sendReachedEndOfTopic(long consumerId) {
-        responseObserver.onNext(Commands.newReachedEndOfTopic());
+        responseObserver.onNext(ConsumeOutputFrame.of(Commands.newReachedEndOfTopic()));
     }
 
     @Override
     public Future<Void> sendMessagesToConsumer(long consumerId, String topicName, Subscription subscription,
             int partitionIdx, List<Entry> entries, EntryBatchSizes batchSizes, EntryBatchIndexesAcks batchIndexesAcks,
             RedeliveryTracker redeliveryTracker) {
+        PackedMessages packedMessages = maxPackedMessagesSize > 0 ? new PackedMessages() : null;
+        List<PositionImpl> sentPositions = sentEntriesListener != null ? new ArrayList<>(entries.size()) : null;
         for (int i = 0; i < entries.size(); i++) {
             Entry entry = entries.get(i);
             if (entry == null) {
@@ -80,43 +122,300 @@ class ConsumerCommandSender extends DefaultGrpcCommandSender {
                 continue;
             }
 
-            MessageIdData.Builder messageIdBuilder = MessageIdData.newBuilder();
-            messageIdBuilder
-                    .setLedgerId(entry.getLedgerId())
-                    .setEntryId(entry.getEntryId())
-                    .setPartition(partitionIdx);
-
+            long ledgerId = entry.getLedgerId();
+            long entryId = entry.getEntryId();
             ByteBuf metadataAndPayload = entry.getDataBuffer();
 
             if (log.isDebugEnabled()) {
                 log.debug("[{}-{}] Sending message to consumer, msg id {}-{}", topicName, subscription,
-                        entry.getLedgerId(), entry.getEntryId());
+                        ledgerId, entryId);
             }
             int redeliveryCount = 0;
-            PositionImpl position = PositionImpl.get(messageIdBuilder.getLedgerId(), messageIdBuilder.getEntryId());
+            PositionImpl position = PositionImpl.get(ledgerId, entryId);
             if (redeliveryTracker.contains(position)) {
                 redeliveryCount = redeliveryTracker.incrementAndGetRedeliveryCount(position);
             }
+            if (sentPositions != null) {
+                sentPositions.add(position);
+            }
 
+            long[] ackSet = batchIndexesAcks == null ? null : batchIndexesAcks.getAckSet(i);
+            PayloadType payloadType = getPayloadType(metadataAndPayload, subscription, consumerId);
+            if (packedMessages != null) {
+                packedMessages.add(entry, payloadType, partitionIdx, redeliveryCount, ackSet);
+                continue;
+            }
+            ConsumeOutputFrame frame = null;
             try {
-                responseObserver.onNext(Commands.newMessage(messageIdBuilder, redeliveryCount, metadataAndPayload,
-                        batchIndexesAcks == null ? null : batchIndexesAcks.getAckSet(i), preferedPayloadType));
+                if (isRawPayloadType(payloadType)) {
+                    frame = ConsumeOutputFrame.newMessage(payloadType, ledgerId, entryId, partitionIdx,
+                            redeliveryCount, ackSet, metadataAndPayload);
+                } else {
+                    ByteBuf body = getEncodedMessageBody(ledgerId, entryId, metadataAndPayload, payloadType);
+                    try {
+                        frame = ConsumeOutputFrame.newEncodedMessage(ledgerId, entryId, partitionIdx,
+                                redeliveryCount, ackSet, body);
+                    } finally {
+                        body.release();
+                    }
+                }
+                responseObserver.onNext(frame);
 
-                cb.accept(1);
+                messagesSent(1, entry.getLength());
             } catch (IOException e) {
                 log.error("Couldn't send message", e);
+            } finally {
+                if (frame != null) {
+                    frame.release();
+                }
             }
 
             entry.release();
         }
+        if (packedMessages != null) {
+            packedMessages.send();
+        }
+        if (sentPositions != null) {
+            sentEntriesListener.entriesSent(sentPositions);
+        }
         batchSizes.recyle();
         if (batchIndexesAcks != null) {
             batchIndexesAcks.recycle();
         }
-        // Cannot know when gRPC has effectively sent the message so validate as soon as onNext returns
-        // Can we do better ?
-        //TODO: Should get brokerService executor ?
-        return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        return newWriteFuture();
+    }
+
+    /**
+     * Consumes the byte permits of messages sent on the stream and calls the callback. If the consumer has no byte
+     * permits left, the callback is deferred until it gets byte permits so that the broker doesn't get the message
+     * permits back. The inbound messages are still requested so that the client can send its acks and flow commands,
+     * and the deferred callback is told they were already requested.
+     */
+    private void messagesSent(int count, long bytes) {
+        countQueuedBytes(bytes);
+        long permits = bytePermits.accumulateAndGet(bytes,
+                (current, sent) -> current == UNLIMITED_BYTE_PERMITS ? current : current - sent);
+        if (permits > 0) {
+            cb.messagesSent(count, false);
+            return;
+        }
+        responseObserver.request(count);
+        deferredSentMessages.addAndGet(count);
+        if (bytePermits.get() > 0) {
+            // Byte permits were given concurrently
+            callDeferredCallbacks();
+        }
+    }
+
+    private void callDeferredCallbacks() {
+        int count = deferredSentMessages.getAndSet(0);
+        if (count > 0) {
+            cb.messagesSent(count, true);
+        }
+    }
+
+    /**
+     * Counts the bytes sent on a stream that is not ready as queued until the stream becomes ready again.
+     */
+    private void countQueuedBytes(long bytes) {
+        if (outboundBytesLimiter == null) {
+            return;
+        }
+        if (responseObserver.isReady()) {
+            releaseQueuedBytes();
+            return;
+        }
+        queuedBytes.addAndGet(bytes);
+        outboundBytesLimiter.queued(bytes);
+    }
+
+    private void releaseQueuedBytes() {
+        long bytes = queuedBytes.getAndSet(0);
+        if (bytes > 0) {
+            outboundBytesLimiter.drained(bytes);
+        }
+    }
+
+    /**
+     * Gives byte permits to the consumer. The consumer has no byte limit until it receives byte permits for the
+     * first time.
+     */
+    void addBytePermits(long permits) {
+        bytePermits.accumulateAndGet(permits, (current, added) -> {
+            if (current == UNLIMITED_BYTE_PERMITS) {
+                return added;
+            }
+            // Don't overflow to the unlimited value
+            return current + added >= UNLIMITED_BYTE_PERMITS || current + added < current
+                    ? UNLIMITED_BYTE_PERMITS - 1 : current + added;
+        });
+    }
+
+    /**
+     * Returns true if the stream can accept more messages: it is ready, the consumer has byte permits left and the
+     * consume streams are not paused by the outbound bytes limiter.
+     */
+    boolean isWritable() {
+        return responseObserver.isReady() && bytePermits.get() > 0
+                && (outboundBytesLimiter == null || !outboundBytesLimiter.isPaused());
+    }
+
+    /**
+     * Returns a future that completes once the stream can accept more messages.
+     *
+     * <p>gRPC doesn't tell when a message has been written to the transport but the stream stays ready as long as
+     * the transport buffers are under their threshold. So the future completes immediately if the stream is
+     * {@link #isWritable writable}, otherwise it completes when it becomes writable again.
+     */
+    private synchronized Future<Void> newWriteFuture() {
+        if (isWritable()) {
+            return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+        if (pendingWritePromise == null) {
+            pendingWritePromise = ImmediateEventExecutor.INSTANCE.newPromise();
+        }
+        return pendingWritePromise;
+    }
+
+    /**
+     * Completes the pending write future if the stream is writable. Must be called when the stream becomes ready, the
+     * consumer receives byte permits or the consume streams are resumed by the outbound bytes limiter.
+     */
+    void writabilityChanged() {
+        if (outboundBytesLimiter != null && responseObserver.isReady()) {
+            releaseQueuedBytes();
+        }
+        if (bytePermits.get() > 0) {
+            callDeferredCallbacks();
+        }
+        if (isWritable()) {
+            completePendingWrite();
+        }
+    }
+
+    /**
+     * Completes the pending write future and releases the bytes queued on the stream. Must be called when the stream
+     * is closed.
+     */
+    void completePendingWrites() {
+        if (outboundBytesLimiter != null) {
+            releaseQueuedBytes();
+        }
+        completePendingWrite();
+    }
+
+    private void completePendingWrite() {
+        Promise<Void> promise;
+        synchronized (this) {
+            promise = pendingWritePromise;
+            pendingWritePromise = null;
+        }
+        if (promise != null) {
+            promise.trySuccess(null);
+        }
+    }
+
+    /**
+     * Returns the payload type in which a message is sent.
+     */
+    private PayloadType getPayloadType(ByteBuf metadataAndPayload, Subscription subscription, long consumerId) {
+        if (autoPayloadType == null) {
+            return preferedPayloadType;
+        }
+        MessageMetadata metadata = org.apache.pulsar.common.protocol.Commands.peekMessageMetadata(
+                metadataAndPayload, subscription != null ? subscription.getName() : null, consumerId);
+        return autoPayloadType.select(metadata, metadataAndPayload.readableBytes());
+    }
+
+    /**
+     * Returns true if the messages of a payload type are written directly in the frames without parsing the entry
+     * metadata.
+     */
+    private static boolean isRawPayloadType(PayloadType payloadType) {
+        return payloadType == PayloadType.BINARY || payloadType == PayloadType.METADATA_AND_PAYLOAD;
+    }
+
+    /**
+     * Returns the body of a message in a payload type, from the cache if another subscription already encoded it.
+     * The caller must release the returned buffer.
+     */
+    private ByteBuf getEncodedMessageBody(long ledgerId, long entryId, ByteBuf metadataAndPayload,
+            PayloadType payloadType) throws IOException {
+        if (messageBodyCache != null) {
+            ByteBuf body = messageBodyCache.get(ledgerId, entryId, payloadType);
+            if (body != null) {
+                return body;
+            }
+        }
+        // Parsing the metadata moves the reader index of the entry data which is shared with the other subscriptions
+        ByteBuf body = Commands.newEncodedMessageBody(metadataAndPayload.duplicate(), payloadType);
+        if (messageBodyCache != null) {
+            messageBodyCache.put(ledgerId, entryId, payloadType, body);
+        }
+        return body;
+    }
+
+    /**
+     * Messages packed in a single {@link ConsumeOutputFrame} up to the max packed messages size.
+     */
+    private class PackedMessages {
+        private final ConsumeOutputFrame.MessagesBuilder messages = new ConsumeOutputFrame.MessagesBuilder();
+        private long entriesLength = 0;
+
+        void add(Entry entry, PayloadType payloadType, int partition, int redeliveryCount, long[] ackSet) {
+            long ledgerId = entry.getLedgerId();
+            long entryId = entry.getEntryId();
+            ByteBuf metadataAndPayload = entry.getDataBuffer();
+            try {
+                if (isRawPayloadType(payloadType)) {
+                    int messageSize = ConsumeOutputFrame.getPackedMessageSize(payloadType, ledgerId, entryId,
+                            partition, redeliveryCount, ackSet, metadataAndPayload);
+                    sendIfFull(messageSize);
+                    // The frame retains the entry data
+                    messages.add(payloadType, ledgerId, entryId, partition, redeliveryCount, ackSet,
+                            metadataAndPayload);
+                    entriesLength += entry.getLength();
+                    return;
+                }
+
+                ByteBuf body = getEncodedMessageBody(ledgerId, entryId, metadataAndPayload, payloadType);
+                try {
+                    int messageSize = ConsumeOutputFrame.getPackedEncodedMessageSize(ledgerId, entryId, partition,
+                            redeliveryCount, ackSet, body);
+                    sendIfFull(messageSize);
+                    messages.addEncoded(ledgerId, entryId, partition, redeliveryCount, ackSet, body);
+                    entriesLength += entry.getLength();
+                } finally {
+                    body.release();
+                }
+            } catch (IOException e) {
+                log.error("Couldn't send message", e);
+            } finally {
+                entry.release();
+            }
+        }
 
+        private void sendIfFull(int messageSize) {
+            if (messages.count() > 0 && messages.size() + messageSize > maxPackedMessagesSize) {
+                send();
+            }
+        }
+
+        void send() {
+            int count = messages.count();
+            if (count == 0) {
+                return;
+            }
+            ConsumeOutputFrame frame = messages.build();
+            long length = entriesLength;
+            entriesLength = 0;
+            try {
+                responseObserver.onNext(frame);
+
+                messagesSent(count, length);
+            } finally {
+                frame.release();
+            }
+        }
     }
 }
@@ -18,12 +18,19 @@ import io.grpc.ServerInterceptor;
 import io.grpc.ServerInterceptors;
 import io.grpc.netty.NettyServerBuilder;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
 import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.protocol.ProtocolHandler;
 import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.common.util.SimpleTextOutputStream;
+import org.apache.pulsar.common.util.netty.EventLoopUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,11 +42,18 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_HOST_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_MAX_QUEUED_CONSUMER_BYTES_MB_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_NUM_ACCEPTOR_THREADS_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_MESSAGE_BODY_CACHE_SIZE_MB_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_NUM_COMPRESSION_THREADS_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_NUM_IO_THREADS_PROPERTY_NAME;
 import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_PORT_PROPERTY_NAME;
 import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_PORT_TLS_PROPERTY_NAME;
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.GRPC_SERVICE_TRANSPORT_PROPERTY_NAME;
 
 /**
  * Protocol handler for gRPC.
@@ -48,11 +62,18 @@ public class GrpcService implements ProtocolHandler {
 
     private static final Logger log = LoggerFactory.getLogger(GrpcService.class);
     private static final String NAME = "grpc";
+    private static final String TRANSPORT_EPOLL = "epoll";
+    private static final String TRANSPORT_NIO = "nio";
 
     private ServiceConfiguration configuration;
     private String advertisedAddress = null;
     private Server server = null;
     private Server tlsServer = null;
+    private EventLoopGroup bossGroup = null;
+    private EventLoopGroup workerGroup = null;
+    private OrderedExecutor compressionExecutor = null;
+    private MessageBodyCache messageBodyCache = null;
+    private PublishBufferLimiter publishBufferLimiter = null;
 
     @Override
     public String protocolName() {
@@ -91,8 +112,62 @@ public class GrpcService implements ProtocolHandler {
     public void start(BrokerService service) {
         try {
             advertisedAddress = service.pulsar().getAdvertisedAddress();
-            PulsarGrpcService pulsarGrpcService =
-                    new PulsarGrpcService(service, configuration, new NioEventLoopGroup());
+            String transport = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_TRANSPORT_PROPERTY_NAME))
+                    .orElse(TRANSPORT_EPOLL);
+            if (TRANSPORT_EPOLL.equals(transport) && !Epoll.isAvailable()) {
+                log.warn("The epoll transport is not available for the gRPC service, falling back to NIO: {}",
+                        Epoll.unavailabilityCause().getMessage());
+                transport = TRANSPORT_NIO;
+            }
+            int numAcceptorThreads = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_NUM_ACCEPTOR_THREADS_PROPERTY_NAME))
+                    .map(Integer::parseInt)
+                    .orElse(1);
+            // 0 lets Netty use its default number of threads
+            int numIOThreads = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_NUM_IO_THREADS_PROPERTY_NAME))
+                    .map(Integer::parseInt)
+                    .orElse(0);
+            bossGroup = newEventLoopGroup(transport, numAcceptorThreads,
+                    new DefaultThreadFactory("pulsar-grpc-acceptor"));
+            // The producers run on the event loops of the gRPC transport so that the messages received on a
+            // connection are handled by the thread reading it
+            workerGroup = newEventLoopGroup(transport, numIOThreads, new DefaultThreadFactory("pulsar-grpc-io"));
+            Class<? extends ServerSocketChannel> channelType = EventLoopUtil.getServerSocketChannelClass(workerGroup);
+            // 0 compresses the messages on the event loops
+            int numCompressionThreads = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_NUM_COMPRESSION_THREADS_PROPERTY_NAME))
+                    .map(Integer::parseInt)
+                    .orElse(0);
+            if (numCompressionThreads > 0) {
+                compressionExecutor = OrderedExecutor.newBuilder()
+                        .numThreads(numCompressionThreads)
+                        .name("pulsar-grpc-compression")
+                        .build();
+            }
+            // 0 disables the cache
+            int messageBodyCacheSizeMB = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_MESSAGE_BODY_CACHE_SIZE_MB_PROPERTY_NAME))
+                    .map(Integer::parseInt)
+                    .orElse(0);
+            if (messageBodyCacheSizeMB > 0) {
+                messageBodyCache = new MessageBodyCache(messageBodyCacheSizeMB * 1024L * 1024L);
+            }
+            // 0 disables the broker-wide limit of the bytes queued on the consume streams
+            int maxQueuedConsumerBytesMB = Optional.ofNullable(
+                    configuration.getProperties().getProperty(GRPC_SERVICE_MAX_QUEUED_CONSUMER_BYTES_MB_PROPERTY_NAME))
+                    .map(Integer::parseInt)
+                    .orElse(0);
+            OutboundBytesLimiter outboundBytesLimiter = maxQueuedConsumerBytesMB > 0
+                    ? new OutboundBytesLimiter(maxQueuedConsumerBytesMB * 1024L * 1024L)
+                    : null;
+            // The publish buffer is shared by all the gRPC producers whatever their event loop
+            publishBufferLimiter =
+                    new PublishBufferLimiter(configuration.getMaxMessagePublishBufferSizeInMB() * 1024L * 1024L);
+            service.pulsar().addPrometheusRawMetricsProvider(this::generateMetrics);
+            PulsarGrpcService pulsarGrpcService = new PulsarGrpcService(service, configuration, workerGroup,
+                    compressionExecutor, messageBodyCache, outboundBytesLimiter, publishBufferLimiter);
             List<ServerInterceptor> interceptors = new ArrayList<>();
             interceptors.add(new GrpcServerInterceptor());
             if (service.isAuthenticationEnabled()) {
@@ -106,7 +181,10 @@ public class GrpcService implements ProtocolHandler {
             if (grpcServicePort.isPresent()) {
                 Integer port = grpcServicePort.get();
                 server = NettyServerBuilder.forAddress(new InetSocketAddress(service.pulsar().getBindAddress(), port))
-                        .addService(ServerInterceptors.intercept(pulsarGrpcService, interceptors))
+                        .addService(ServerInterceptors.intercept(pulsarGrpcService.serviceDefinition(), interceptors))
+                        .bossEventLoopGroup(bossGroup)
+                        .workerEventLoopGroup(workerGroup)
+                        .channelType(channelType)
                         .directExecutor()
                         .build()
                         .start();
@@ -128,8 +206,13 @@ public class GrpcService implements ProtocolHandler {
 
                 tlsServer =
                         NettyServerBuilder.forAddress(new InetSocketAddress(service.pulsar().getBindAddress(), port))
-                                .addService(ServerInterceptors.intercept(pulsarGrpcService, interceptors))
+                                .addService(ServerInterceptors.intercept(pulsarGrpcService.serviceDefinition(),
+                                        interceptors))
+                                .bossEventLoopGroup(bossGroup)
+                                .workerEventLoopGroup(workerGroup)
+                                .channelType(channelType)
                                 .sslContext(sslContext)
+                                .directExecutor()
                                 .build()
                                 .start();
                 log.info("gRPC TLS Service started, listening on " + tlsServer.getPort());
@@ -150,6 +233,28 @@ public class GrpcService implements ProtocolHandler {
         }
     }
 
+    private void generateMetrics(SimpleTextOutputStream stream) {
+        writeGauge(stream, "pulsar_grpc_publish_buffer_size", publishBufferLimiter.getPendingBytes());
+        writeGauge(stream, "pulsar_grpc_publish_buffer_max_size", publishBufferLimiter.getMaxPendingBytes());
+    }
+
+    private void writeGauge(SimpleTextOutputStream stream, String name, long value) {
+        stream.write("# TYPE ").write(name).write(" gauge\n");
+        stream.write(name).write("{cluster=\"").write(configuration.getClusterName()).write("\"} ")
+                .write(value).write('\n');
+    }
+
+    private static EventLoopGroup newEventLoopGroup(String transport, int nThreads, ThreadFactory threadFactory) {
+        switch (transport) {
+            case TRANSPORT_EPOLL:
+                return EventLoopUtil.newEventLoopGroup(nThreads, false, threadFactory);
+            case TRANSPORT_NIO:
+                return new NioEventLoopGroup(nThreads, threadFactory);
+            default:
+                throw new IllegalArgumentException("Unknown gRPC service transport: " + transport);
+        }
+    }
+
     @Override
     public Map<InetSocketAddress, ChannelInitializer<SocketChannel>> newChannelInitializers() {
         // The gRPC server uses it's own Netty setup.
@@ -178,6 +283,18 @@ public class GrpcService implements ProtocolHandler {
         if (tlsServer != null) {
             tlsServer.awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+        }
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+        }
+        if (messageBodyCache != null) {
+            messageBodyCache.clear();
+        }
     }
 
     public Optional<Integer> getListenPort() {
@@ -0,0 +1,437 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe;
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
+import io.github.cbornet.pulsar.handlers.grpc.api.ServerError;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static io.github.cbornet.pulsar.handlers.grpc.Constants.ERROR_CODE_METADATA_KEY;
+
+/**
+ * Handles a session call, on which several producers and consumers share the same stream.
+ *
+ * <p>Each producer and consumer of the session is handled as if it had its own produce or consume call: its commands
+ * are passed to the observer returned by the produce or consume handler and its results are sent on the session
+ * stream with its id. The inbound flow control of a producer is turned into {@code CommandSendPermits} sent to the
+ * client, so that a throttled producer doesn't stop the reading of the session stream for the others. The producers
+ * are always ready: their permits only depend on their send window, not on the backlog of the session stream, so that
+ * a slow consumer doesn't hold back the permits of the producers. The consumers get their permits from their
+ * {@code CommandFlow} or when the session stream is ready, as on a consume call, and their serialized frames are
+ * written on the session stream by {@link SessionOutputMarshaller}.
+ *
+ * <p>The session stream is read with the inbound flow control of its producers and consumers: the inputs they request
+ * are requested on the session stream, and any other input is read one at a time.
+ */
+class GrpcSession implements StreamObserver<SessionInput> {
+
+    private static final Logger log = LoggerFactory.getLogger(GrpcSession.class);
+
+    private final CallStreamObserver<SessionOutputFrame> responseObserver;
+    private final SocketAddress remoteAddress;
+    private final BiFunction<CommandProducer, StreamObserver<SendResult>, StreamObserver<CommandSend>> produceHandler;
+    private final BiFunction<CommandSubscribe, StreamObserver<ConsumeOutputFrame>, StreamObserver<ConsumeInput>>
+            consumeHandler;
+    private final Map<Long, ProducerStream> producers = new ConcurrentHashMap<>();
+    private final Map<Long, ConsumerStream> consumers = new ConcurrentHashMap<>();
+    // The on-ready handlers of the consumers, called when the session stream becomes ready
+    private final Set<Runnable> onReadyHandlers = ConcurrentHashMap.newKeySet();
+    private volatile boolean inputClosed = false;
+    // Guarded by this
+    private boolean outputClosed = false;
+
+    GrpcSession(CallStreamObserver<SessionOutputFrame> responseObserver, SocketAddress remoteAddress,
+            BiFunction<CommandProducer, StreamObserver<SendResult>, StreamObserver<CommandSend>> produceHandler,
+            BiFunction<CommandSubscribe, StreamObserver<ConsumeOutputFrame>, StreamObserver<ConsumeInput>>
+                    consumeHandler) {
+        this.responseObserver = responseObserver;
+        this.remoteAddress = remoteAddress;
+        this.produceHandler = produceHandler;
+        this.consumeHandler = consumeHandler;
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(() -> onReadyHandlers.forEach(Runnable::run));
+        responseObserver.request(1);
+    }
+
+    @Override
+    public void onNext(SessionInput input) {
+        long id;
+        switch (input.getSessionInputOneofCase()) {
+            case PRODUCER:
+                id = input.getProducer().getProducerId();
+                ProducerStream newProducer = new ProducerStream(id);
+                if (producers.putIfAbsent(id, newProducer) != null) {
+                    fail("Producer id " + id + " is already in use");
+                    return;
+                }
+                newProducer.input = produceHandler.apply(input.getProducer().getProducer(), newProducer);
+                newProducer.onReady();
+                break;
+            case SEND:
+                id = input.getSend().getProducerId();
+                ProducerStream producer = producers.get(id);
+                if (producer == null) {
+                    log.warn("[{}] Producer {} not found on session", remoteAddress, id);
+                    break;
+                }
+                if (producer.send(input.getSend().getSend())) {
+                    // The next input was requested with the permit
+                    return;
+                }
+                break;
+            case CLOSE_PRODUCER:
+                producer = producers.get(input.getCloseProducer().getProducerId());
+                if (producer != null) {
+                    producer.input.onCompleted();
+                }
+                break;
+            case SUBSCRIBE:
+                id = input.getSubscribe().getConsumerId();
+                ConsumerStream newConsumer = new ConsumerStream(id);
+                if (consumers.putIfAbsent(id, newConsumer) != null) {
+                    fail("Consumer id " + id + " is already in use");
+                    return;
+                }
+                newConsumer.input = consumeHandler.apply(input.getSubscribe().getSubscribe(), newConsumer);
+                newConsumer.onReady();
+                break;
+            case CONSUME_INPUT:
+                id = input.getConsumeInput().getConsumerId();
+                ConsumerStream consumer = consumers.get(id);
+                if (consumer == null) {
+                    log.warn("[{}] Consumer {} not found on session", remoteAddress, id);
+                    break;
+                }
+                boolean requested = consumer.takeInputPermit();
+                consumer.input.onNext(input.getConsumeInput().getInput());
+                if (requested) {
+                    // The next input was requested by the consumer
+                    return;
+                }
+                break;
+            case CLOSE_CONSUMER:
+                consumer = consumers.get(input.getCloseConsumer().getConsumerId());
+                if (consumer != null) {
+                    consumer.input.onCompleted();
+                    // The consumer doesn't complete its stream if it was closed before being created
+                    consumer.onCompleted();
+                }
+                break;
+            default:
+                break;
+        }
+        responseObserver.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            // The call is cancelled
+            outputClosed = true;
+        }
+        if (inputClosed) {
+            // Already closed by the client or after a failure
+            return;
+        }
+        inputClosed = true;
+        producers.values().forEach(producer -> producer.input.onError(throwable));
+        consumers.values().forEach(consumer -> consumer.input.onError(throwable));
+    }
+
+    @Override
+    public void onCompleted() {
+        // The session is completed once all its producers and consumers are closed
+        inputClosed = true;
+        producers.values().forEach(producer -> producer.input.onCompleted());
+        consumers.values().forEach(consumer -> {
+            consumer.input.onCompleted();
+            consumer.onCompleted();
+        });
+        completeIfClosed();
+    }
+
+    private void fail(String message) {
+        log.warn("[{}] {}", remoteAddress, message);
+        synchronized (this) {
+            if (!outputClosed) {
+                outputClosed = true;
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(message).asException());
+            }
+        }
+        onError(Status.CANCELLED.withDescription(message).asException());
+    }
+
+    private void completeIfClosed() {
+        if (inputClosed && producers.isEmpty() && consumers.isEmpty()) {
+            synchronized (this) {
+                if (!outputClosed) {
+                    outputClosed = true;
+                    responseObserver.onCompleted();
+                }
+            }
+        }
+    }
+
+    private void write(SessionOutput output) {
+        write(SessionOutputFrame.of(output));
+    }
+
+    // The results of the producers and consumers are sent from different threads
+    private synchronized void write(SessionOutputFrame frame) {
+        if (!outputClosed) {
+            responseObserver.onNext(frame);
+        }
+    }
+
+    private static ServerError getServerError(Throwable throwable) {
+        Metadata trailers = Status.trailersFromThrowable(throwable);
+        if (trailers == null || !trailers.containsKey(ERROR_CODE_METADATA_KEY)) {
+            return ServerError.UnknownError;
+        }
+        ServerError error = ServerError.forNumber(Integer.parseInt(trailers.get(ERROR_CODE_METADATA_KEY)));
+        return error == null ? ServerError.UnknownError : error;
+    }
+
+    /**
+     * The stream of the results of a producer of the session.
+     */
+    private class ProducerStream extends CallStreamObserver<SendResult> {
+
+        private final long producerId;
+        private final AtomicInteger sendPermits = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile StreamObserver<CommandSend> input;
+        private volatile Runnable onReadyHandler;
+
+        private ProducerStream(long producerId) {
+            this.producerId = producerId;
+        }
+
+        /**
+         * Passes a send command to the producer if the client had a permit for it.
+         *
+         * @return whether a permit was taken
+         */
+        private boolean send(CommandSend send) {
+            // The permits are only taken on the thread reading the session stream
+            if (sendPermits.get() <= 0) {
+                write(Commands.newSessionSendResult(producerId, Commands.newSendError(send.getSequenceId(),
+                        ServerError.TooManyRequests, "No send permits for producer " + producerId)));
+                return false;
+            }
+            sendPermits.decrementAndGet();
+            input.onNext(send);
+            return true;
+        }
+
+        private void onReady() {
+            Runnable handler = onReadyHandler;
+            if (handler != null && !closed.get()) {
+                handler.run();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            // The results and permits of a producer are bounded by its send window, so they are queued on the session
+            // stream even if the consumers filled it
+            return !closed.get();
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            // Only called once the producer is created since the producer stays ready
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            // The sends are always requested with permits
+        }
+
+        @Override
+        public void request(int count) {
+            sendPermits.addAndGet(count);
+            if (!closed.get()) {
+                responseObserver.request(count);
+                write(Commands.newSendPermits(producerId, count));
+            }
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onNext(SendResult result) {
+            if (!closed.get()) {
+                write(Commands.newSessionSendResult(producerId, result));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (close()) {
+                write(Commands.newProducerClosed(producerId, getServerError(throwable),
+                        Status.fromThrowable(throwable).getDescription()));
+                StreamObserver<CommandSend> producerInput = input;
+                if (producerInput != null) {
+                    // Same as a call closed by the server with an error
+                    producerInput.onError(throwable);
+                }
+                completeIfClosed();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (close()) {
+                write(Commands.newProducerClosed(producerId, null, null));
+                completeIfClosed();
+            }
+        }
+
+        private boolean close() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            producers.remove(producerId, this);
+            return true;
+        }
+    }
+
+    /**
+     * The stream of the outputs of a consumer of the session.
+     */
+    private class ConsumerStream extends CallStreamObserver<ConsumeOutputFrame> {
+
+        private final long consumerId;
+        private final AtomicInteger inputPermits = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile StreamObserver<ConsumeInput> input;
+        private volatile Runnable onReadyHandler;
+
+        private ConsumerStream(long consumerId) {
+            this.consumerId = consumerId;
+        }
+
+        private void onReady() {
+            Runnable handler = onReadyHandler;
+            if (handler != null && !closed.get()) {
+                handler.run();
+            }
+        }
+
+        /**
+         * Takes a permit for an input if the consumer requested one.
+         */
+        private boolean takeInputPermit() {
+            // The permits are only taken on the thread reading the session stream
+            if (inputPermits.get() <= 0) {
+                return false;
+            }
+            inputPermits.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return responseObserver.isReady();
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+            onReadyHandlers.add(onReadyHandler);
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            // The inputs are always requested
+        }
+
+        @Override
+        public void request(int count) {
+            if (!closed.get()) {
+                inputPermits.addAndGet(count);
+                responseObserver.request(count);
+            }
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onNext(ConsumeOutputFrame frame) {
+            if (!closed.get()) {
+                write(SessionOutputFrame.newConsumeOutput(consumerId, frame));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (close()) {
+                write(Commands.newConsumerClosed(consumerId, getServerError(throwable),
+                        Status.fromThrowable(throwable).getDescription()));
+                StreamObserver<ConsumeInput> consumerInput = input;
+                if (consumerInput != null) {
+                    // Same as a call closed by the server with an error
+                    consumerInput.onError(throwable);
+                }
+                completeIfClosed();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (close()) {
+                write(Commands.newConsumerClosed(consumerId, null, null));
+                completeIfClosed();
+            }
+        }
+
+        private boolean close() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            if (onReadyHandler != null) {
+                onReadyHandlers.remove(onReadyHandler);
+            }
+            consumers.remove(consumerId, this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Broker-wide LRU cache of the message bodies encoded by {@link Commands#newEncodedMessageBody}.
+ *
+ * <p>When several subscriptions consume the same topic with the MESSAGES or METADATA_AND_PAYLOAD_UNCOMPRESSED
+ * payload types, each entry is uncompressed and split once instead of once per subscription. The bodies don't
+ * contain the fields specific to a consumer such as the redelivery count and the ack set.
+ *
+ * <p>The cache holds a reference on each body and releases it when the body is evicted. The size of the cache is
+ * bounded by the total number of bytes of the bodies.
+ *
+ * <p>The cache is split in segments selected by the entry position so the dispatchers of different topics and
+ * subscriptions don't contend on a single lock. Each segment evicts its own least recently used bodies and is
+ * bounded by an equal share of the size of the cache.
+ */
+class MessageBodyCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final Segment[] segments;
+
+    MessageBodyCache(long maxSize) {
+        this(maxSize, (int) Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)));
+    }
+
+    MessageBodyCache(long maxSize, int segmentCount) {
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maxSize / segmentCount);
+        }
+    }
+
+    /**
+     * Returns the body of an entry in the given payload type or null if it is not in the cache.
+     * The caller must release the returned buffer.
+     */
+    ByteBuf get(long ledgerId, long entryId, PayloadType payloadType) {
+        return segment(ledgerId, entryId).get(new Key(ledgerId, entryId, payloadType));
+    }
+
+    /**
+     * Adds the body of an entry to the cache and evicts the least recently used bodies if the cache is full.
+     * The cache retains the body if it is added.
+     */
+    void put(long ledgerId, long entryId, PayloadType payloadType, ByteBuf body) {
+        segment(ledgerId, entryId).put(new Key(ledgerId, entryId, payloadType), body);
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    int count() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.count();
+        }
+        return count;
+    }
+
+    /**
+     * Releases all the bodies of the cache.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segment(long ledgerId, long entryId) {
+        int hash = hash(ledgerId, entryId);
+        // Spread the high bits as consecutive entries only differ in their low bits
+        return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static int hash(long ledgerId, long entryId) {
+        return Long.hashCode(ledgerId) * 31 + Long.hashCode(entryId);
+    }
+
+    private static final class Segment {
+
+        private final long maxSize;
+        private final LinkedHashMap<Key, ByteBuf> bodies = new LinkedHashMap<>(16, 0.75f, true);
+        private long size = 0;
+
+        Segment(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized ByteBuf get(Key key) {
+            ByteBuf body = bodies.get(key);
+            return body != null ? body.retainedDuplicate() : null;
+        }
+
+        synchronized void put(Key key, ByteBuf body) {
+            int bodySize = body.readableBytes();
+            if (bodySize > maxSize) {
+                return;
+            }
+            if (bodies.containsKey(key)) {
+                // Already added by another subscription
+                return;
+            }
+            bodies.put(key, body.retainedDuplicate());
+            size += bodySize;
+
+            Iterator<ByteBuf> iterator = bodies.values().iterator();
+            while (size > maxSize) {
+                ByteBuf evicted = iterator.next();
+                iterator.remove();
+                size -= evicted.readableBytes();
+                evicted.release();
+            }
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        synchronized int count() {
+            return bodies.size();
+        }
+
+        synchronized void clear() {
+            for (ByteBuf body : bodies.values()) {
+                body.release();
+            }
+            bodies.clear();
+            size = 0;
+        }
+    }
+
+    private static final class Key {
+        private final long ledgerId;
+        private final long entryId;
+        private final PayloadType payloadType;
+
+        Key(long ledgerId, long entryId, PayloadType payloadType) {
+            this.ledgerId = ledgerId;
+            this.entryId = entryId;
+            this.payloadType = payloadType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return ledgerId == key.ledgerId && entryId == key.entryId && payloadType == key.payloadType;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(ledgerId, entryId) * 31 + payloadType.getNumber();
+        }
+    }
+}
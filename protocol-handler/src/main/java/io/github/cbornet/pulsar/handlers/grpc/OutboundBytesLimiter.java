@@ -0,0 +1,85 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broker-wide limit of the bytes queued by gRPC on the consume streams.
+ *
+ * <p>The bytes of the messages sent on a stream that is not ready are counted as queued until the stream becomes
+ * ready again, since gRPC then holds less than its ready threshold for it. When the queued bytes of all the streams go
+ * over the high water mark, the consume streams are paused: they are not writable anymore so the dispatchers stop
+ * reading entries for their consumers. They are resumed once the queued bytes drain below the low water mark, which
+ * is half of the high water mark.
+ */
+class OutboundBytesLimiter {
+
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    // Called when the streams are resumed
+    private final Set<Runnable> resumeListeners = ConcurrentHashMap.newKeySet();
+
+    OutboundBytesLimiter(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+    }
+
+    /**
+     * Counts bytes queued on a stream.
+     */
+    void queued(long bytes) {
+        if (queuedBytes.addAndGet(bytes) > highWaterMark && paused.compareAndSet(false, true)
+                && queuedBytes.get() <= lowWaterMark) {
+            // Drained concurrently before the streams were paused
+            resume();
+        }
+    }
+
+    /**
+     * Counts bytes that are not queued anymore.
+     */
+    void drained(long bytes) {
+        if (queuedBytes.addAndGet(-bytes) <= lowWaterMark && paused.get()) {
+            resume();
+        }
+    }
+
+    private void resume() {
+        if (paused.compareAndSet(true, false)) {
+            resumeListeners.forEach(Runnable::run);
+        }
+    }
+
+    boolean isPaused() {
+        return paused.get();
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    void addResumeListener(Runnable listener) {
+        resumeListeners.add(listener);
+    }
+
+    void removeResumeListener(Runnable listener) {
+        resumeListeners.remove(listener);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.compression.CompressionCodec;
+import org.apache.pulsar.common.compression.CompressionCodecProvider;
+
+/**
+ * Compresses payloads with the Pulsar compression codecs whatever the kind of buffer they are in.
+ *
+ * <p>Since https://github.com/apache/pulsar/pull/5390 Pulsar uses the airlift lib to compress which only accepts
+ * direct or array-backed buffers. Payloads wrapping a read-only heap buffer, like the ones of the bytes fields of the
+ * gRPC messages, are copied to a pooled direct buffer before being compressed. The other payloads are given as is
+ * to the codec, so the payloads that are not compressed never need to be copied.
+ */
+final class PayloadCompressor {
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * Returns a new buffer with the compressed payload. The payload is not released.
+     */
+    static ByteBuf encode(CompressionType compressionType, ByteBuf payload) {
+        CompressionCodec codec = CompressionCodecProvider.getCompressionCodec(compressionType);
+        if (isSupportedByCodecs(payload)) {
+            return codec.encode(payload);
+        }
+        ByteBuf copy = PulsarByteBufAllocator.DEFAULT.directBuffer(payload.readableBytes());
+        try {
+            copy.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            return codec.encode(copy);
+        } finally {
+            copy.release();
+        }
+    }
+
+    static boolean isSupportedByCodecs(ByteBuf payload) {
+        return payload.isDirect() || payload.hasArray() || payload.nioBufferCount() != 1;
+    }
+}
@@ -16,6 +16,7 @@ package io.github.cbornet.pulsar.handlers.grpc;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.CodedOutputStream;
 import com.scurrilous.circe.checksum.Crc32cIntChecksum;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducer;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
 import io.github.cbornet.pulsar.handlers.grpc.api.CompressionType;
 import io.github.cbornet.pulsar.handlers.grpc.api.MessageMetadata;
@@ -28,10 +29,8 @@ import io.grpc.stub.StreamObserver;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.EventLoop;
-import io.netty.util.concurrent.FastThreadLocal;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
 import org.apache.bookkeeper.mledger.util.SafeRun;
-import org.apache.commons.lang3.mutable.MutableInt;
-import org.apache.commons.lang3.mutable.MutableLong;
 import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.broker.authentication.AuthenticationDataSource;
 import org.apache.pulsar.broker.service.BrokerService;
@@ -40,22 +39,25 @@ import org.apache.pulsar.broker.service.PulsarCommandSender;
 import org.apache.pulsar.client.api.transaction.TxnID;
 import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.api.proto.SingleMessageMetadata;
-import org.apache.pulsar.common.compression.CompressionCodec;
-import org.apache.pulsar.common.compression.CompressionCodecProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static io.github.cbornet.pulsar.handlers.grpc.Commands.convertCompressionType;
 import static io.github.cbornet.pulsar.handlers.grpc.Commands.convertSingleMessageMetadataRecycled;
+import static io.github.cbornet.pulsar.handlers.grpc.Commands.newSingleMessageMetadataRecycled;
 import static org.apache.pulsar.common.protocol.Commands.serializeSingleMessageInBatchWithPayload;
 
 class ProducerCnx extends AbstractGrpcCnx {
+    private static final Logger log = LoggerFactory.getLogger(ProducerCnx.class);
+
     private final CallStreamObserver<SendResult> responseObserver;
     private final ProducerCommandSender producerCommandSender;
     private final EventLoop eventLoop;
@@ -63,109 +65,193 @@ class ProducerCnx extends AbstractGrpcCnx {
     // Max number of pending requests per produce RPC
     private final int maxPendingSendRequests;
     private final int resumeReadsThreshold;
+    // Number of send commands requested from the stream at once
+    private final int sendWindow;
     private final int maxNonPersistentPendingMessages;
     private final AutoReadAwareOnReadyHandler onReadyHandler = new AutoReadAwareOnReadyHandler();
     private final boolean preciseTopicPublishRateLimitingEnable;
+    // Batches the messages sent one by one by the client, null if server-side batching is disabled
+    private final MessageBatcher batcher;
+    // Executor compressing the messages off the event loop, null if the messages are compressed on the event loop
+    private final OrderedExecutor compressionExecutor;
+    // Number of messages of the producer being serialized by the compression executor
+    private int pendingCompressions = 0;
     private int pendingSendRequest = 0;
+    // Number of send commands requested from the stream that were not handled yet
+    private int requestedSends = 0;
     private int nonPersistentPendingMessages = 0;
     private volatile boolean isAutoRead = true;
     private volatile boolean autoReadDisabledRateLimiting = false;
 
     // Flag to manage throttling-publish-buffer by atomically enable/disable read-channel.
     private boolean autoReadDisabledPublishBufferLimiting = false;
-    private final long maxPendingBytesPerThread;
-    private final long resumeThresholdPendingBytesPerThread;
-
-    // Number of bytes pending to be published from a single specific IO thread.
-    private static final FastThreadLocal<MutableLong> pendingBytesPerThread = new FastThreadLocal<MutableLong>() {
-        @Override
-        protected MutableLong initialValue() {
-            return new MutableLong();
-        }
-    };
-
-    // A set of producers tied to the current thread
-    private static final FastThreadLocal<Set<ProducerCnx>> cnxsPerThread = new FastThreadLocal<Set<ProducerCnx>>() {
-        @Override
-        protected Set<ProducerCnx> initialValue() {
-            return Collections.newSetFromMap(new IdentityHashMap<>());
-        }
-    };
+    // Broker-wide limit of the bytes pending to be published by the gRPC producers
+    private final PublishBufferLimiter publishBufferLimiter;
+    private final Runnable publishBufferListener = () -> execute(this::updatePublishBufferLimiting);
 
     public ProducerCnx(BrokerService service, SocketAddress remoteAddress, String authRole,
             AuthenticationDataSource authenticationData, StreamObserver<SendResult> responseObserver,
-            EventLoop eventLoop) {
+            EventLoop eventLoop, OrderedExecutor compressionExecutor, PublishBufferLimiter publishBufferLimiter,
+            CommandProducer producerParams) {
         super(service, remoteAddress, authRole, authenticationData);
         ServiceConfiguration conf = service.pulsar().getConfiguration();
         this.maxNonPersistentPendingMessages = conf.getMaxConcurrentNonPersistentMessagePerConnection();
         this.maxPendingSendRequests = conf.getMaxPendingPublishRequestsPerConnection();
         this.resumeReadsThreshold = maxPendingSendRequests / 2;
+        int sendWindow = Math.max(1, producerParams.getSendWindow());
+        this.sendWindow = maxPendingSendRequests > 0 ? Math.min(sendWindow, maxPendingSendRequests) : sendWindow;
         this.preciseDispatcherFlowControl = conf.isPreciseDispatcherFlowControl();
         this.preciseTopicPublishRateLimitingEnable = conf.isPreciseTopicPublishRateLimiterEnable();
+        this.eventLoop = eventLoop;
         this.responseObserver = (CallStreamObserver<SendResult>) responseObserver;
         this.responseObserver.disableAutoInboundFlowControl();
         this.responseObserver.setOnReadyHandler(onReadyHandler);
-        // Assign a portion of max-pending bytes to each IO thread
-        this.maxPendingBytesPerThread = conf.getMaxMessagePublishBufferSizeInMB() * 1024L * 1024L
-            / conf.getNumIOThreads();
-        this.resumeThresholdPendingBytesPerThread = this.maxPendingBytesPerThread / 2;
-
-        this.producerCommandSender = new ProducerCommandSender(responseObserver);
-        this.eventLoop = eventLoop;
-        cnxsPerThread.get().add(this);
+        this.publishBufferLimiter = publishBufferLimiter;
+
+        this.producerCommandSender =
+                new ProducerCommandSender(responseObserver, eventLoop, producerParams.getMaxCoalescedSendReceipts());
+        this.batcher = producerParams.getBatchingMaxMessages() > 1 ? new MessageBatcher(producerParams) : null;
+        this.compressionExecutor = compressionExecutor;
+        publishBufferLimiter.addListener(publishBufferListener);
+        // Starts paused if the publish buffer is full
+        publishBufferListener.run();
     }
 
     private static ByteBuf compressAndSerialize(MessageMetadata.Builder metadataBuilder, ByteBuf payload) {
         ByteBuf headersAndPayload;
         if (metadataBuilder.getCompression() != CompressionType.NONE) {
-            org.apache.pulsar.common.api.proto.CompressionType compressionType =
-                convertCompressionType(metadataBuilder.getCompression());
-            CompressionCodec compressor = CompressionCodecProvider.getCompressionCodec(compressionType);
             int uncompressedSize = payload.readableBytes();
-            ByteBuf compressedPayload = compressor.encode(payload);
-            payload.release();
-            metadataBuilder.setUncompressedSize(uncompressedSize);
+            ByteBuf compressedPayload;
             try {
-                headersAndPayload = serializeMetadataAndPayload(metadataBuilder.build(), compressedPayload);
+                compressedPayload = PayloadCompressor.encode(
+                        convertCompressionType(metadataBuilder.getCompression()), payload);
             } finally {
+                payload.release();
+            }
+            metadataBuilder.setUncompressedSize(uncompressedSize);
+            // The compressed payload is a new buffer so the headers are put in front of it without copying it
+            ByteBuf headers;
+            try {
+                headers = serializeHeaders(metadataBuilder.build(), compressedPayload, 0);
+            } catch (RuntimeException e) {
                 compressedPayload.release();
+                throw e;
             }
+            headersAndPayload = PulsarByteBufAllocator.DEFAULT.compositeBuffer(2)
+                    .addComponents(true, headers, compressedPayload);
         } else {
-            headersAndPayload = serializeMetadataAndPayload(metadataBuilder.build(), payload);
+            try {
+                headersAndPayload = serializeMetadataAndPayload(metadataBuilder.build(), payload);
+            } finally {
+                payload.release();
+            }
         }
         return headersAndPayload;
     }
 
+    /**
+     * Serializes the messages of a MESSAGES send in a Pulsar batch.
+     *
+     * <p>The size of the batch is computed first so that the messages are written once in a buffer of the right size.
+     * If the batch is not compressed, space is reserved in the same buffer for the headers.
+     */
+    private static ByteBuf serializeBatch(MessageMetadata.Builder metadataBuilder, List<SingleMessage> messages) {
+        int batchSize = 0;
+        for (SingleMessage message : messages) {
+            int payloadSize = message.getPayload().size();
+            batchSize += 4 + payloadSize + convertSingleMessageMetadataRecycled(message.getMetadata())
+                    .setPayloadSize(payloadSize)
+                    .getSerializedSize();
+        }
+
+        if (metadataBuilder.getCompression() != CompressionType.NONE) {
+            ByteBuf batch = PulsarByteBufAllocator.DEFAULT.buffer(batchSize, batchSize);
+            serializeSingleMessages(messages, batch);
+            return compressAndSerialize(metadataBuilder, batch);
+        }
+
+        MessageMetadata msgMetadata = metadataBuilder.build();
+        int headersSize = 10 + msgMetadata.getSerializedSize();
+        int totalSize = headersSize + batchSize;
+        ByteBuf headersAndPayload = PulsarByteBufAllocator.DEFAULT.buffer(totalSize, totalSize);
+        headersAndPayload.writerIndex(headersSize);
+        serializeSingleMessages(messages, headersAndPayload);
+        ByteBuf batch = headersAndPayload.slice(headersSize, batchSize);
+        headersAndPayload.writerIndex(0);
+        writeHeaders(msgMetadata, batch, headersAndPayload);
+        headersAndPayload.writerIndex(totalSize);
+        return headersAndPayload;
+    }
+
+    private static void serializeSingleMessages(List<SingleMessage> messages, ByteBuf batch) {
+        for (SingleMessage message : messages) {
+            SingleMessageMetadata singleMessageMetadata =
+                    convertSingleMessageMetadataRecycled(message.getMetadata());
+            ByteBuf payload = Unpooled.wrappedBuffer(message.getPayload().asReadOnlyByteBuffer());
+            serializeSingleMessageInBatchWithPayload(singleMessageMetadata, payload, batch);
+        }
+    }
+
     private static ByteBuf serializeMetadataAndPayload(MessageMetadata msgMetadata, ByteBuf payload) {
+        ByteBuf metadataAndPayload = serializeHeaders(msgMetadata, payload, payload.readableBytes());
+        metadataAndPayload.writeBytes(payload);
+        return metadataAndPayload;
+    }
+
+    private static ByteBuf serializeMetadataAndPayload(MessageMetadata msgMetadata, CommandSendFrame frame) {
+        ByteBuf payload = frame.getPayload();
+        ByteBuf headers = serializeHeaders(msgMetadata, payload, 0);
+        try {
+            // The headers are usually smaller than the CommandSend fields preceding the payload so they can be
+            // written in place and the payload doesn't need to be copied.
+            ByteBuf metadataAndPayload = frame.prependToPayload(headers);
+            if (metadataAndPayload != null) {
+                return metadataAndPayload;
+            }
+        } finally {
+            headers.release();
+        }
+        return serializeMetadataAndPayload(msgMetadata, payload);
+    }
+
+    private static ByteBuf serializeHeaders(MessageMetadata msgMetadata, ByteBuf payload, int payloadCapacity) {
+        int totalSize = 10 + msgMetadata.getSerializedSize() + payloadCapacity;
+        ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(totalSize, totalSize);
+        try {
+            writeHeaders(msgMetadata, payload, headers);
+        } catch (RuntimeException e) {
+            headers.release();
+            throw e;
+        }
+        return headers;
+    }
+
+    /**
+     * Writes the magic number, checksum and metadata of a message at the writer index of a buffer.
+     */
+    private static void writeHeaders(MessageMetadata msgMetadata, ByteBuf payload, ByteBuf headers) {
         int msgMetadataSize = msgMetadata.getSerializedSize();
-        int payloadSize = payload.readableBytes();
-        int headerContentSize = 10 + msgMetadataSize;
         int checksumReaderIndex;
-        int totalSize = headerContentSize + payloadSize;
-        ByteBuf metadataAndPayload = PulsarByteBufAllocator.DEFAULT.buffer(totalSize, totalSize);
 
         try {
-            metadataAndPayload.writeShort(3585);
-            checksumReaderIndex = metadataAndPayload.writerIndex();
-            metadataAndPayload.writerIndex(metadataAndPayload.writerIndex() + 4);
-            metadataAndPayload.writeInt(msgMetadataSize);
+            headers.writeShort(3585);
+            checksumReaderIndex = headers.writerIndex();
+            headers.writerIndex(headers.writerIndex() + 4);
+            headers.writeInt(msgMetadataSize);
             CodedOutputStream outStream = CodedOutputStream.newInstance(
-                    metadataAndPayload.nioBuffer(metadataAndPayload.writerIndex(), metadataAndPayload.writableBytes()));
+                    headers.nioBuffer(headers.writerIndex(), msgMetadataSize));
             msgMetadata.writeTo(outStream);
-            metadataAndPayload.writerIndex(metadataAndPayload.writerIndex() + msgMetadataSize);
+            headers.writerIndex(headers.writerIndex() + msgMetadataSize);
         } catch (IOException var13) {
             throw new RuntimeException(var13);
         }
 
-        metadataAndPayload.markReaderIndex();
-        metadataAndPayload.readerIndex(checksumReaderIndex + 4);
-        int metadataChecksum = Crc32cIntChecksum.computeChecksum(metadataAndPayload);
+        int readerIndex = headers.readerIndex();
+        headers.readerIndex(checksumReaderIndex + 4);
+        int metadataChecksum = Crc32cIntChecksum.computeChecksum(headers);
         int computedChecksum = Crc32cIntChecksum.resumeChecksum(metadataChecksum, payload);
-        metadataAndPayload.setInt(checksumReaderIndex, computedChecksum);
-        metadataAndPayload.resetReaderIndex();
-
-        metadataAndPayload.writeBytes(payload);
-        return metadataAndPayload;
+        headers.setInt(checksumReaderIndex, computedChecksum);
+        headers.readerIndex(readerIndex);
     }
 
     @Override
@@ -175,8 +261,38 @@ class ProducerCnx extends AbstractGrpcCnx {
 
     @Override
     public void closeProducer(Producer producer) {
+        producerCommandSender.flushSendReceipts();
         responseObserver.onCompleted();
-        cnxsPerThread.get().remove(this);
+        execute(() -> {
+            if (batcher != null) {
+                batcher.discard();
+            }
+        });
+        streamClosed();
+    }
+
+    /**
+     * Called when the produce stream is closed.
+     */
+    void streamClosed() {
+        publishBufferLimiter.removeListener(publishBufferListener);
+    }
+
+    /**
+     * Runs a task on the event loop once the messages already received have been published.
+     */
+    void executeAfterPendingSends(Runnable task) {
+        execute(() -> {
+            if (batcher != null) {
+                batcher.flush();
+            }
+            if (pendingCompressions == 0) {
+                task.run();
+            } else {
+                // Queued after the serializations in progress which publish on the event loop when done
+                compressionExecutor.executeOrdered(this, SafeRun.safeRun(() -> execute(task)));
+            }
+        });
     }
 
     @Override
@@ -184,19 +300,52 @@ class ProducerCnx extends AbstractGrpcCnx {
         isAutoRead = false;
     }
 
-    public void handleSend(CommandSend send, Producer producer) {
-        ByteBuf headersAndPayload;
+    /**
+     * Publishes the message of a send command on the event loop of the producer. The message is handled inline if
+     * the caller runs on this event loop, which is the case when the gRPC transport shares its event loops with the
+     * service and uses a direct executor.
+     */
+    public void send(CommandSendFrame frame, Producer producer) {
+        if (eventLoop.inEventLoop()) {
+            handleSend(frame, producer);
+        } else {
+            eventLoop.execute(() -> handleSend(frame, producer));
+        }
+    }
+
+    /**
+     * Publishes the message of a send command. The frame is released once the message has been handed to the broker.
+     */
+    public void handleSend(CommandSendFrame frame, Producer producer) {
+        try {
+            handleSend(frame.getSend(), frame, producer);
+        } finally {
+            frame.release();
+            onMessageHandled();
+        }
+    }
+
+    private void handleSend(CommandSend send, CommandSendFrame frame, Producer producer) {
+        if (batcher != null) {
+            if (batcher.canBatch(send, producer)) {
+                batcher.add(send, frame.getPayload(), producer);
+                return;
+            }
+            // Keep the order of the messages
+            batcher.flush();
+        }
+
         int numMessages = send.getNumMessages();
         long sequenceId = send.getSequenceId();
         Long highestSequenceId = send.hasHighestSequenceId() ? send.getHighestSequenceId() : null;
+        boolean compress;
 
         switch (send.getSendOneofCase()) {
             case BINARY_METADATA_AND_PAYLOAD:
                 if (!send.hasSequenceId()) {
                     return;
                 }
-                ByteBuffer buffer = send.getBinaryMetadataAndPayload().asReadOnlyByteBuffer();
-                headersAndPayload = Unpooled.wrappedBuffer(buffer);
+                compress = false;
                 break;
             case MESSAGES:
                 Messages sendMessages = send.getMessages();
@@ -207,23 +356,12 @@ class ProducerCnx extends AbstractGrpcCnx {
                 if (highestSequenceId == null && metadata.hasHighestSequenceId()) {
                     highestSequenceId = metadata.getHighestSequenceId();
                 }
-                List<SingleMessage> messages = sendMessages.getMessagesList();
-                numMessages = messages.size();
+                numMessages = sendMessages.getMessagesCount();
                 if (numMessages == 0) {
                     // No message!
                     return;
                 }
-                MessageMetadata.Builder metadataBuilder = metadata.toBuilder();
-                metadataBuilder.setNumMessagesInBatch(messages.size());
-                ByteBuf batchedMessageMetadataAndPayload = PulsarByteBufAllocator.DEFAULT.buffer(1024);
-                for (SingleMessage message : messages) {
-                    SingleMessageMetadata singleMessageMetadata =
-                            convertSingleMessageMetadataRecycled(message.getMetadata());
-                    ByteBuf payload = Unpooled.wrappedBuffer(message.getPayload().asReadOnlyByteBuffer());
-                    serializeSingleMessageInBatchWithPayload(singleMessageMetadata, payload,
-                        batchedMessageMetadataAndPayload);
-                }
-                headersAndPayload = compressAndSerialize(metadataBuilder, batchedMessageMetadataAndPayload);
+                compress = metadata.getCompression() != CompressionType.NONE;
                 break;
             case METADATA_AND_PAYLOAD:
                 MetadataAndPayload metadataAndPayload = send.getMetadataAndPayload();
@@ -231,16 +369,7 @@ class ProducerCnx extends AbstractGrpcCnx {
                 if (!send.hasNumMessages() && metadata.hasNumMessagesInBatch()) {
                     numMessages = metadata.getNumMessagesInBatch();
                 }
-                // Since https://github.com/apache/pulsar/pull/5390 Pulsar uses the airlift lib to compress which
-                // doesn't support ReadOnlyByteBuffer as input. So we have to make a copy here...
-                // ByteBuf payload = Unpooled.wrappedBuffer(metadataAndPayload.getPayload().asReadOnlyByteBuffer());
-                // TODO: check if JNI compression could be used instead of airlift ?
-                ByteBuf payload = Unpooled.wrappedBuffer(metadataAndPayload.getPayload().toByteArray());
-                if (metadataAndPayload.getCompress() && metadata.getCompression() != CompressionType.NONE) {
-                    headersAndPayload = compressAndSerialize(metadata.toBuilder(), payload);
-                } else {
-                    headersAndPayload = serializeMetadataAndPayload(metadata, payload);
-                }
+                compress = metadataAndPayload.getCompress() && metadata.getCompression() != CompressionType.NONE;
                 break;
             case SENDONEOF_NOT_SET:
             default:
@@ -254,9 +383,8 @@ class ProducerCnx extends AbstractGrpcCnx {
                 final long receiptHighestSequenceId = highestSequenceId == null ? 0 : highestSequenceId;
                 service.getTopicOrderedExecutor().executeOrdered(
                         producer.getTopic().getName(),
-                        SafeRun.safeRun(() -> responseObserver
-                                .onNext(Commands.newSendReceipt(receiptSequenceId, receiptHighestSequenceId,
-                                        -1, -1)))
+                        SafeRun.safeRun(() -> producerCommandSender.sendSendReceiptResponse(
+                                producer.getProducerId(), receiptSequenceId, receiptHighestSequenceId, -1, -1))
                 );
                 producer.recordMessageDrop(numMessages);
                 return;
@@ -265,25 +393,113 @@ class ProducerCnx extends AbstractGrpcCnx {
             }
         }
 
-        startSendOperation(producer, headersAndPayload.readableBytes(), send.getNumMessages());
+        if (compressionExecutor != null && (compress || pendingCompressions > 0)) {
+            int payloadSize = frame.getPayload() != null
+                    ? frame.getPayload().readableBytes() : send.getSerializedSize();
+            frame.retain();
+            serializeAndPublishOrdered(producer, send, sequenceId, highestSequenceId, numMessages, payloadSize, () -> {
+                try {
+                    return serialize(send, frame);
+                } finally {
+                    frame.release();
+                }
+            });
+        } else {
+            ByteBuf headersAndPayload = serialize(send, frame);
+            startSendOperation(producer, headersAndPayload.readableBytes(), numMessages);
+            publish(producer, send, headersAndPayload, sequenceId, highestSequenceId, numMessages);
+        }
+    }
 
-        if (send.hasTxnidMostBits() && send.hasTxnidLeastBits()) {
-            TxnID txnID = new TxnID(send.getTxnidMostBits(), send.getTxnidLeastBits());
-            producer.publishTxnMessage(txnID, producer.getProducerId(), send.getSequenceId(),
-                send.getHighestSequenceId(), headersAndPayload, send.getNumMessages(), send.getIsChunk(),
-                send.getMarker());
-            return;
+    private static ByteBuf serialize(CommandSend send, CommandSendFrame frame) {
+        switch (send.getSendOneofCase()) {
+            case BINARY_METADATA_AND_PAYLOAD:
+                return frame.getPayload().retain();
+            case MESSAGES:
+                Messages sendMessages = send.getMessages();
+                MessageMetadata.Builder metadataBuilder = sendMessages.getMetadata().toBuilder();
+                metadataBuilder.setNumMessagesInBatch(sendMessages.getMessagesCount());
+                return serializeBatch(metadataBuilder, sendMessages.getMessagesList());
+            case METADATA_AND_PAYLOAD:
+                MetadataAndPayload metadataAndPayload = send.getMetadataAndPayload();
+                MessageMetadata metadata = metadataAndPayload.getMetadata();
+                if (metadataAndPayload.getCompress() && metadata.getCompression() != CompressionType.NONE) {
+                    return compressAndSerialize(metadata.toBuilder(), frame.getPayload().retain());
+                } else {
+                    return serializeMetadataAndPayload(metadata, frame);
+                }
+            default:
+                throw new IllegalArgumentException("Unexpected send type " + send.getSendOneofCase());
         }
+    }
 
-        // Persist the message
-        if (highestSequenceId != null && sequenceId <= highestSequenceId) {
-            producer.publishMessage(producer.getProducerId(), sequenceId, highestSequenceId,
-                    headersAndPayload, numMessages, send.getIsChunk(), send.getMarker());
-        } else {
-            producer.publishMessage(producer.getProducerId(), sequenceId, headersAndPayload,
-                    numMessages, send.getIsChunk(), send.getMarker());
+    /**
+     * Serializes a message on the compression executor and publishes it on the event loop.
+     *
+     * <p>The serializations of a producer are done in order on the same thread of the compression executor, so the
+     * messages are published in the order they were received. The uncompressed size is added to the pending bytes
+     * while the message is serialized.
+     */
+    private void serializeAndPublishOrdered(Producer producer, CommandSend send, long sequenceId,
+            Long highestSequenceId, int numMessages, int payloadSize, Supplier<ByteBuf> serializer) {
+        startSendOperation(producer, payloadSize, numMessages);
+        pendingCompressions++;
+        compressionExecutor.executeOrdered(this, SafeRun.safeRun(() -> {
+            ByteBuf headersAndPayload;
+            try {
+                headersAndPayload = serializer.get();
+            } catch (RuntimeException e) {
+                log.warn("[{}] Failed to serialize message of producer {}", remoteAddress, producer.getProducerName(),
+                        e);
+                execute(() -> {
+                    pendingCompressions--;
+                    completedSendOperation(producer.isNonPersistentTopic(), payloadSize);
+                    producerCommandSender.sendSendError(producer.getProducerId(), sequenceId,
+                            org.apache.pulsar.common.api.proto.ServerError.UnknownError, e.getMessage());
+                });
+                return;
+            }
+            execute(() -> {
+                pendingCompressions--;
+                int sizeDelta = headersAndPayload.readableBytes() - payloadSize;
+                if (sizeDelta > 0) {
+                    publishBufferLimiter.add(sizeDelta);
+                } else {
+                    publishBufferLimiter.remove(-sizeDelta);
+                }
+                publish(producer, send, headersAndPayload, sequenceId, highestSequenceId, numMessages);
+            });
+        }));
+    }
+
+    /**
+     * Publishes a serialized message. The send command is null for the batches assembled by the broker.
+     */
+    private void publish(Producer producer, CommandSend send, ByteBuf headersAndPayload, long sequenceId,
+            Long highestSequenceId, int numMessages) {
+        // The producer retains the buffer if needed
+        try {
+            if (send != null && send.hasTxnidMostBits() && send.hasTxnidLeastBits()) {
+                TxnID txnID = new TxnID(send.getTxnidMostBits(), send.getTxnidLeastBits());
+                producer.publishTxnMessage(txnID, producer.getProducerId(), send.getSequenceId(),
+                    send.getHighestSequenceId(), headersAndPayload, send.getNumMessages(), send.getIsChunk(),
+                    send.getMarker());
+                return;
+            }
+
+            boolean isChunk = send != null && send.getIsChunk();
+            boolean isMarker = send != null && send.getMarker();
+            // Persist the message
+            if (highestSequenceId != null && sequenceId <= highestSequenceId) {
+                producer.publishMessage(producer.getProducerId(), sequenceId, highestSequenceId,
+                        headersAndPayload, numMessages, isChunk, isMarker);
+            } else {
+                producer.publishMessage(producer.getProducerId(), sequenceId, headersAndPayload,
+                        numMessages, isChunk, isMarker);
+            }
+        } finally {
+            headersAndPayload.release();
         }
-        onMessageHandled();
     }
 
     private void startSendOperation(Producer producer, int msgSize, int numMessages) {
@@ -307,18 +523,25 @@ class ProducerCnx extends AbstractGrpcCnx {
             autoReadDisabledRateLimiting = isPublishRateExceeded;
         }
 
-        if (pendingBytesPerThread.get().addAndGet(msgSize) >= maxPendingBytesPerThread
-            && !autoReadDisabledPublishBufferLimiting
-            && maxPendingBytesPerThread > 0) {
-            // Disable reading from all the connections associated with this thread
-            MutableInt pausedConnections = new MutableInt();
-            cnxsPerThread.get().forEach(cnx -> {
-                if (!cnx.autoReadDisabledPublishBufferLimiting) {
-                    cnx.disableCnxAutoRead();
-                    cnx.autoReadDisabledPublishBufferLimiting = true;
-                    pausedConnections.increment();
-                }
-            });
+        publishBufferLimiter.add(msgSize);
+    }
+
+    /**
+     * Stops or resumes reading from the stream when the publish buffer is paused or resumed. Must be called on the
+     * event loop of the producer.
+     */
+    private void updatePublishBufferLimiting() {
+        boolean paused = publishBufferLimiter.isPaused();
+        if (paused == autoReadDisabledPublishBufferLimiting) {
+            return;
+        }
+        autoReadDisabledPublishBufferLimiting = paused;
+        if (paused) {
+            disableCnxAutoRead();
+            getBrokerService().pausedConnections(1);
+        } else {
+            enableCnxAutoRead();
+            getBrokerService().resumedConnections(1);
         }
     }
 
@@ -329,20 +552,7 @@ class ProducerCnx extends AbstractGrpcCnx {
 
     @Override
     public void completedSendOperation(boolean isNonPersistentTopic, int msgSize) {
-        if (pendingBytesPerThread.get().addAndGet(-msgSize) < resumeThresholdPendingBytesPerThread
-            && autoReadDisabledPublishBufferLimiting) {
-            // Re-enable reading on all the blocked connections
-            MutableInt resumedConnections = new MutableInt();
-            cnxsPerThread.get().forEach(cnx -> {
-                if (cnx.autoReadDisabledPublishBufferLimiting) {
-                    cnx.autoReadDisabledPublishBufferLimiting = false;
-                    cnx.enableCnxAutoRead();
-                    resumedConnections.increment();
-                }
-            });
-
-            getBrokerService().resumedConnections(resumedConnections.intValue());
-        }
+        publishBufferLimiter.remove(msgSize);
 
         if (--pendingSendRequest == resumeReadsThreshold) {
             enableCnxAutoRead();
@@ -361,8 +571,10 @@ class ProducerCnx extends AbstractGrpcCnx {
             // Resume reading from socket if pending-request is not reached to threshold
             isAutoRead = true;
             // triggers channel read
-            if (responseObserver.isReady()) {
-                responseObserver.request(1);
+            if (eventLoop.inEventLoop()) {
+                resumeReads();
+            } else {
+                execute(this::resumeReads);
             }
         }
     }
@@ -383,19 +595,221 @@ class ProducerCnx extends AbstractGrpcCnx {
         }
     }
 
+    /**
+     * Called each time a send command received from the stream has been handled. The send window is updated on the
+     * event loop of the producer.
+     */
     public void onMessageHandled() {
+        if (!eventLoop.inEventLoop()) {
+            execute(this::onMessageHandled);
+            return;
+        }
+        requestedSends--;
         if (responseObserver.isReady() && isAutoRead) {
-            responseObserver.request(1);
+            requestSends();
         } else {
             onReadyHandler.wasReady = false;
         }
     }
 
+    private void resumeReads() {
+        if (responseObserver.isReady() && isAutoRead) {
+            requestSends();
+        }
+    }
+
+    /**
+     * Requests send commands from the stream so that up to the send window are requested, once half of the window
+     * has been handled. Must be called on the event loop of the producer.
+     */
+    private void requestSends() {
+        if (requestedSends <= sendWindow / 2) {
+            int count = sendWindow - requestedSends;
+            requestedSends = sendWindow;
+            responseObserver.request(count);
+        }
+    }
+
     @Override
     public void execute(Runnable runnable) {
         eventLoop.execute(runnable);
     }
 
+    /**
+     * Assembles the single messages sent with METADATA_AND_PAYLOAD into batches published as a single entry.
+     *
+     * <p>Consecutive messages are batched together as long as they share the same batch level metadata, and the
+     * batch is published when it reaches the max number of messages or bytes, or after the max publish delay.
+     * The result of the batch is sent back for each message with its batch index.
+     * The results are matched with the batches by sequence id, so the messages are only batched as long as the
+     * producer sets strictly increasing sequence ids: otherwise the result of a message published alone could be taken
+     * for the result of a batch with the same sequence id.
+     * All the methods must be called on the event loop of the producer.
+     */
+    private class MessageBatcher {
+        private final int maxMessages;
+        private final int maxBytes;
+        private final long maxPublishDelayMicros;
+        private final long[] sequenceIds;
+
+        private Producer producer;
+        private MessageMetadata batchMetadata;
+        private boolean compress;
+        private ByteBuf batchedMessageMetadataAndPayload;
+        private int numMessages = 0;
+        private ScheduledFuture<?> flushTask;
+        // The highest sequence id sent by the producer, batched or not
+        private long lastSequenceId = -1;
+        private boolean increasingSequenceIds = true;
+
+        MessageBatcher(CommandProducer producerParams) {
+            this.maxMessages = producerParams.getBatchingMaxMessages();
+            this.maxBytes = producerParams.getBatchingMaxBytes();
+            this.maxPublishDelayMicros = producerParams.getBatchingMaxPublishDelayMicros();
+            this.sequenceIds = new long[maxMessages];
+        }
+
+        /**
+         * Returns whether the message of a send command can be batched with other messages.
+         * Must be called for every send command of the producer to check the order of the sequence ids.
+         */
+        boolean canBatch(CommandSend send, Producer producer) {
+            if (!checkSequenceId(send)
+                    || send.getSendOneofCase() != CommandSend.SendOneofCase.METADATA_AND_PAYLOAD
+                    || producer.isNonPersistentTopic()
+                    || send.hasTxnidMostBits() || send.hasTxnidLeastBits()
+                    || send.getIsChunk() || send.getMarker() || send.getNumMessages() != 1) {
+                return false;
+            }
+            MetadataAndPayload metadataAndPayload = send.getMetadataAndPayload();
+            MessageMetadata metadata = metadataAndPayload.getMetadata();
+            // Compressed and encrypted payloads can't be put in a batch
+            return (metadata.getCompression() == CompressionType.NONE || metadataAndPayload.getCompress())
+                    && metadata.getEncryptionKeysCount() == 0
+                    && metadata.getNumMessagesInBatch() == 1
+                    && !metadata.hasUuid() && !metadata.hasChunkId() && !metadata.hasMarkerType()
+                    && !metadata.hasDeliverAtTime() && !metadata.hasReplicatedFrom()
+                    && metadata.getReplicateToCount() == 0
+                    && !metadata.hasTxnidMostBits() && !metadata.hasTxnidLeastBits();
+        }
+
+        /**
+         * Returns false once the producer sent a command without sequence id or with a sequence id that is not higher
+         * than the previous ones.
+         */
+        private boolean checkSequenceId(CommandSend send) {
+            if (!increasingSequenceIds) {
+                return false;
+            }
+            if (!send.hasSequenceId() || send.getSequenceId() <= lastSequenceId) {
+                increasingSequenceIds = false;
+                return false;
+            }
+            lastSequenceId = Math.max(send.getSequenceId(), send.getHighestSequenceId());
+            return true;
+        }
+
+        /**
+         * Adds the message of a send command to the batch. The payload is copied.
+         */
+        void add(CommandSend send, ByteBuf payload, Producer producer) {
+            MetadataAndPayload metadataAndPayload = send.getMetadataAndPayload();
+            MessageMetadata metadata = metadataAndPayload.getMetadata();
+            boolean compress = metadataAndPayload.getCompress() && metadata.getCompression() != CompressionType.NONE;
+            if (numMessages > 0 && (!isSameBatch(metadata, compress)
+                    || batchedMessageMetadataAndPayload.readableBytes() + payload.readableBytes() > maxBytes)) {
+                flush();
+            }
+            if (numMessages == 0) {
+                this.producer = producer;
+                // The frame of the message is released before the batch is flushed
+                this.batchMetadata = CommandSendFrame.copyOf(metadata);
+                this.compress = compress;
+                this.batchedMessageMetadataAndPayload = PulsarByteBufAllocator.DEFAULT.buffer(
+                        Math.min(maxBytes, 1024));
+                this.flushTask = eventLoop.schedule(this::flush, maxPublishDelayMicros, TimeUnit.MICROSECONDS);
+            }
+            serializeSingleMessageInBatchWithPayload(newSingleMessageMetadataRecycled(metadata), payload,
+                    batchedMessageMetadataAndPayload);
+            sequenceIds[numMessages++] = send.getSequenceId();
+            if (numMessages == maxMessages || batchedMessageMetadataAndPayload.readableBytes() >= maxBytes) {
+                flush();
+            }
+        }
+
+        private boolean isSameBatch(MessageMetadata metadata, boolean compress) {
+            // The keys are kept at the batch level for the Key_Shared subscriptions
+            return compress == this.compress
+                    && metadata.getCompression() == batchMetadata.getCompression()
+                    && metadata.getProducerName().equals(batchMetadata.getProducerName())
+                    && metadata.getSchemaVersion().equals(batchMetadata.getSchemaVersion())
+                    && metadata.hasPartitionKey() == batchMetadata.hasPartitionKey()
+                    && metadata.getPartitionKey().equals(batchMetadata.getPartitionKey())
+                    && metadata.getPartitionKeyB64Encoded() == batchMetadata.getPartitionKeyB64Encoded()
+                    && metadata.hasOrderingKey() == batchMetadata.hasOrderingKey()
+                    && metadata.getOrderingKey().equals(batchMetadata.getOrderingKey());
+        }
+
+        /**
+         * Publishes the pending batch, if any.
+         */
+        void flush() {
+            if (numMessages == 0) {
+                return;
+            }
+            flushTask.cancel(false);
+            long sequenceId = sequenceIds[0];
+            long highestSequenceId = sequenceIds[numMessages - 1];
+            MessageMetadata.Builder metadataBuilder = batchMetadata.toBuilder()
+                    .clearProperties()
+                    .clearEventTime()
+                    .clearNullValue()
+                    .setSequenceId(sequenceId)
+                    .setNumMessagesInBatch(numMessages);
+            if (highestSequenceId > sequenceId) {
+                metadataBuilder.setHighestSequenceId(highestSequenceId);
+            }
+            if (!compress) {
+                metadataBuilder.setCompression(CompressionType.NONE);
+            }
+            int batchSize = numMessages;
+            producerCommandSender.addBatch(sequenceId, Arrays.copyOf(sequenceIds, batchSize));
+            Producer producer = this.producer;
+            ByteBuf batch = batchedMessageMetadataAndPayload;
+            boolean compress = this.compress;
+            reset();
+
+            Long batchHighestSequenceId = highestSequenceId > sequenceId ? highestSequenceId : null;
+            if (compressionExecutor != null && (compress || pendingCompressions > 0)) {
+                serializeAndPublishOrdered(producer, null, sequenceId, batchHighestSequenceId, batchSize,
+                        batch.readableBytes(), () -> compressAndSerialize(metadataBuilder, batch));
+            } else {
+                ByteBuf headersAndPayload = compressAndSerialize(metadataBuilder, batch);
+                startSendOperation(producer, headersAndPayload.readableBytes(), batchSize);
+                publish(producer, null, headersAndPayload, sequenceId, batchHighestSequenceId, batchSize);
+            }
+        }
+
+        /**
+         * Drops the pending batch, if any.
+         */
+        void discard() {
+            if (numMessages > 0) {
+                flushTask.cancel(false);
+                batchedMessageMetadataAndPayload.release();
+                reset();
+            }
+        }
+
+        private void reset() {
+            numMessages = 0;
+            producer = null;
+            batchMetadata = null;
+            batchedMessageMetadataAndPayload = null;
+            flushTask = null;
+        }
+    }
+
     class AutoReadAwareOnReadyHandler implements Runnable {
         // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the transport
         // toggles isReady() from false to true while onNext() is executing, but before onNext() checks isReady(),
@@ -405,10 +819,16 @@ class ProducerCnx extends AbstractGrpcCnx {
 
         @Override
         public void run() {
+            // The transport calls the handler on the executor of the server, which is not the event loop of the
+            // producer unless the server uses a direct executor
+            if (!eventLoop.inEventLoop()) {
+                execute(this);
+                return;
+            }
             if (responseObserver.isReady() && !wasReady) {
                 wasReady = true;
                 if (isAutoRead) {
-                    responseObserver.request(1);
+                    requestSends();
                 }
             }
         }
@@ -13,27 +13,110 @@
  */
 package io.github.cbornet.pulsar.handlers.grpc;
 
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendReceipt;
 import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
 import io.grpc.stub.StreamObserver;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 class ProducerCommandSender extends DefaultGrpcCommandSender {
 
     private final StreamObserver<SendResult> responseObserver;
+    private final Executor executor;
+    private final int maxCoalescedSendReceipts;
+    // Receipts waiting to be sent together in the same result
+    private final List<CommandSendReceipt> pendingSendReceipts = new ArrayList<>();
+    // Sequence ids of the messages batched by the broker, by sequence id of the batches waiting for their result.
+    // The messages are only batched while the sequence ids of the producer are strictly increasing, so a batch can't
+    // have the same sequence id as another batch or as a message published alone.
+    private final Map<Long, long[]> pendingBatches = new HashMap<>();
 
-    public ProducerCommandSender(StreamObserver<SendResult> responseObserver) {
+    /**
+     * Creates a command sender that coalesces the send receipts if {@code maxCoalescedSendReceipts} is greater than 1.
+     * The pending receipts are sent when this number is reached or by a task submitted to the executor when the first
+     * receipt is added, so that all the receipts completed during the same run of the executor are sent together.
+     */
+    public ProducerCommandSender(StreamObserver<SendResult> responseObserver, Executor executor,
+            int maxCoalescedSendReceipts) {
         this.responseObserver = responseObserver;
+        this.executor = executor;
+        this.maxCoalescedSendReceipts = maxCoalescedSendReceipts;
+    }
+
+    /**
+     * Registers a batch of messages assembled by the broker so that its result is sent for each of the messages.
+     */
+    synchronized void addBatch(long sequenceId, long[] sequenceIds) {
+        pendingBatches.put(sequenceId, sequenceIds);
+    }
+
+    private long[] removeBatch(long sequenceId) {
+        return pendingBatches.remove(sequenceId);
     }
 
     @Override
-    public void sendSendError(long producerId, long sequenceId,
+    public synchronized void sendSendError(long producerId, long sequenceId,
             org.apache.pulsar.common.api.proto.ServerError serverError, String message) {
-        responseObserver.onNext(Commands.newSendError(sequenceId, Commands.convertServerError(serverError), message));
+        flushSendReceipts();
+        long[] sequenceIds = removeBatch(sequenceId);
+        if (sequenceIds == null) {
+            sequenceIds = new long[] {sequenceId};
+        }
+        for (long messageSequenceId : sequenceIds) {
+            responseObserver.onNext(
+                    Commands.newSendError(messageSequenceId, Commands.convertServerError(serverError), message));
+        }
     }
 
     @Override
     public void sendSendReceiptResponse(long producerId, long sequenceId, long highestSequenceId, long ledgerId,
             long entryId) {
-        responseObserver.onNext(Commands.newSendReceipt(sequenceId, highestSequenceId, ledgerId, entryId));
+        long[] sequenceIds;
+        synchronized (this) {
+            sequenceIds = pendingBatches.isEmpty() ? null : removeBatch(sequenceId);
+        }
+        if (sequenceIds == null) {
+            sendSendReceipt(Commands.newCommandSendReceipt(sequenceId, highestSequenceId, ledgerId, entryId));
+            return;
+        }
+        for (int i = 0; i < sequenceIds.length; i++) {
+            sendSendReceipt(Commands.newCommandSendReceipt(sequenceIds[i], sequenceIds[i], ledgerId, entryId, i,
+                    sequenceIds.length));
+        }
+    }
+
+    private void sendSendReceipt(CommandSendReceipt sendReceipt) {
+        if (maxCoalescedSendReceipts <= 1) {
+            responseObserver.onNext(Commands.newSendReceipt(sendReceipt));
+            return;
+        }
+        synchronized (this) {
+            pendingSendReceipts.add(sendReceipt);
+            if (pendingSendReceipts.size() >= maxCoalescedSendReceipts) {
+                flushSendReceipts();
+            } else if (pendingSendReceipts.size() == 1) {
+                executor.execute(this::flushSendReceipts);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending send receipts.
+     */
+    synchronized void flushSendReceipts() {
+        if (pendingSendReceipts.isEmpty()) {
+            return;
+        }
+        if (pendingSendReceipts.size() == 1) {
+            responseObserver.onNext(Commands.newSendReceipt(pendingSendReceipts.get(0)));
+        } else {
+            responseObserver.onNext(Commands.newSendReceipts(pendingSendReceipts));
+        }
+        pendingSendReceipts.clear();
     }
 
 }
@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide limit of the bytes of the messages received from the gRPC producers and not yet persisted.
+ *
+ * <p>The pending bytes are counted in a {@link LongAdder} so that the producers of different event loops don't
+ * contend on a single counter. When they reach the max, the publish buffer is paused and the listeners of all the
+ * producers are called so that they stop reading from their streams. It is resumed, and the listeners called again,
+ * once the pending bytes drop below half of the max. The paused state is switched with a CAS so that the listeners
+ * are called once per transition whatever the thread completing the sends.
+ */
+class PublishBufferLimiter {
+
+    private final long maxPendingBytes;
+    private final long resumeThresholdPendingBytes;
+    private final LongAdder pendingBytes = new LongAdder();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    // Called when the publish buffer is paused or resumed
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the limiter. A max of 0 or less disables the limit but the pending bytes are still counted.
+     */
+    PublishBufferLimiter(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+        this.resumeThresholdPendingBytes = maxPendingBytes / 2;
+    }
+
+    /**
+     * Counts the bytes of a message received from a producer.
+     */
+    void add(long bytes) {
+        pendingBytes.add(bytes);
+        if (maxPendingBytes > 0 && !paused.get() && pendingBytes.sum() >= maxPendingBytes
+                && paused.compareAndSet(false, true)) {
+            listeners.forEach(Runnable::run);
+            if (pendingBytes.sum() < resumeThresholdPendingBytes) {
+                // Drained concurrently before the producers were paused
+                resume();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a message that was persisted or failed.
+     */
+    void remove(long bytes) {
+        pendingBytes.add(-bytes);
+        if (paused.get() && pendingBytes.sum() < resumeThresholdPendingBytes) {
+            resume();
+        }
+    }
+
+    private void resume() {
+        if (paused.compareAndSet(true, false)) {
+            listeners.forEach(Runnable::run);
+        }
+    }
+
+    boolean isPaused() {
+        return paused.get();
+    }
+
+    long getPendingBytes() {
+        return pendingBytes.sum();
+    }
+
+    long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    int getListenerCount() {
+        return listeners.size();
+    }
+
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+}
@@ -32,6 +32,7 @@ import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetTopicsOfNamespace;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetTopicsOfNamespaceResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopic;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopicResponse;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandNegativeAck;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandNewTxn;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandNewTxnResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandPartitionedTopicMetadata;
@@ -56,11 +57,22 @@ import io.github.cbornet.pulsar.handlers.grpc.api.PulsarGrpc;
 import io.github.cbornet.pulsar.handlers.grpc.api.Schema;
 import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
 import io.github.cbornet.pulsar.handlers.grpc.api.ServerError;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
 import io.grpc.Context;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.apache.bookkeeper.common.util.OrderedExecutor;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
@@ -105,13 +117,16 @@ import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static io.github.cbornet.pulsar.handlers.grpc.Commands.convertCommandAck;
@@ -139,15 +154,91 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
     private final EventLoopGroup eventLoopGroup;
     private final ServiceConfiguration configuration;
     private final TopicLookupService topicLookupService;
+    private final OrderedExecutor compressionExecutor;
+    private final MessageBodyCache messageBodyCache;
+    private final OutboundBytesLimiter outboundBytesLimiter;
+    private final PublishBufferLimiter publishBufferLimiter;
+    private final DoubleSupplier brokerCpuUsage;
 
     public PulsarGrpcService(BrokerService service, ServiceConfiguration configuration, EventLoopGroup eventLoopGroup) {
+        this(service, configuration, eventLoopGroup, null, null, null,
+                new PublishBufferLimiter(configuration.getMaxMessagePublishBufferSizeInMB() * 1024L * 1024L));
+    }
+
+    /**
+     * Creates the service. If the compression executor is null, the messages are compressed on the event loops.
+     * If the message body cache is null, the consumed entries are uncompressed and split for each subscription.
+     * If the outbound bytes limiter is null, the bytes queued on the consume streams have no broker-wide limit.
+     */
+    public PulsarGrpcService(BrokerService service, ServiceConfiguration configuration, EventLoopGroup eventLoopGroup,
+            OrderedExecutor compressionExecutor, MessageBodyCache messageBodyCache,
+            OutboundBytesLimiter outboundBytesLimiter, PublishBufferLimiter publishBufferLimiter) {
         this.service = service;
         this.schemaService = service.pulsar().getSchemaRegistryService();
         this.eventLoopGroup = eventLoopGroup;
+        this.compressionExecutor = compressionExecutor;
+        this.messageBodyCache = messageBodyCache;
+        this.outboundBytesLimiter = outboundBytesLimiter;
+        this.publishBufferLimiter = publishBufferLimiter;
         this.configuration = configuration;
         this.topicLookupService = new TopicLookupService(service.getPulsar());
+        this.brokerCpuUsage = AutoPayloadType.newBrokerCpuUsage(service.pulsar());
+    }
+
+    /**
+     * Returns the definition of the service to register on the gRPC server.
+     * Unlike {@link #bindService()}, the produce, consume and session methods exchange the payloads as Netty buffers.
+     */
+    public ServerServiceDefinition serviceDefinition() {
+        MethodDescriptor<CommandSend, SendResult> produceMethod = PulsarGrpc.getProduceMethod();
+        MethodDescriptor<ConsumeInput, ConsumeOutput> consumeMethod = PulsarGrpc.getConsumeMethod();
+        MethodDescriptor<SessionInput, SessionOutput> sessionMethod = PulsarGrpc.getSessionMethod();
+        return replaceMethods(bindService(),
+                ServerMethodDefinition.create(
+                        produceMethod.toBuilder(new CommandSendMarshaller(), produceMethod.getResponseMarshaller())
+                                .build(),
+                        ServerCalls.asyncBidiStreamingCall(this::produceFrames)),
+                ServerMethodDefinition.create(
+                        consumeMethod.toBuilder(consumeMethod.getRequestMarshaller(), new ConsumeOutputMarshaller())
+                                .build(),
+                        ServerCalls.asyncBidiStreamingCall(this::consumeFrames)),
+                ServerMethodDefinition.create(
+                        sessionMethod.toBuilder(sessionMethod.getRequestMarshaller(), new SessionOutputMarshaller())
+                                .build(),
+                        ServerCalls.asyncBidiStreamingCall(this::sessionFrames)));
     }
 
+    private static ServerServiceDefinition replaceMethods(ServerServiceDefinition definition,
+            ServerMethodDefinition<?, ?>... replacements) {
+        Map<String, ServerMethodDefinition<?, ?>> methods = new LinkedHashMap<>();
+        definition.getMethods().forEach(method ->
+                methods.put(method.getMethodDescriptor().getFullMethodName(), method));
+        for (ServerMethodDefinition<?, ?> replacement : replacements) {
+            methods.put(replacement.getMethodDescriptor().getFullMethodName(), replacement);
+        }
+        ServiceDescriptor.Builder serviceDescriptor = ServiceDescriptor
+                .newBuilder(definition.getServiceDescriptor().getName())
+                .setSchemaDescriptor(definition.getServiceDescriptor().getSchemaDescriptor());
+        methods.values().forEach(method -> serviceDescriptor.addMethod(method.getMethodDescriptor()));
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(serviceDescriptor.build());
+        methods.values().forEach(builder::addMethod);
+        return builder.build();
+    }
+
+    /**
+     * Returns the event loop running the current thread if it belongs to the service event loop group, so that the
+     * calls received by a gRPC transport sharing this group with a direct executor, as the servers started by
+     * {@link GrpcService} do, are handled without a thread hop.
+     * Otherwise, for instance with an in-process transport, returns the next event loop of the group.
+     */
+    private EventLoop currentEventLoop() {
+        for (EventExecutor executor : eventLoopGroup) {
+            if (executor.inEventLoop()) {
+                return (EventLoop) executor;
+            }
+        }
+        return eventLoopGroup.next();
+    }
 
     private static void closeProduce(CompletableFuture<Producer> producerFuture, SocketAddress remoteAddress) {
         if (!producerFuture.isDone() && producerFuture
@@ -726,7 +817,8 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
     public void produceSingle(CommandProduceSingle request, StreamObserver<CommandSendReceipt> responseObserver) {
         Context ctx = Context.current().withValue(PRODUCER_PARAMS_CTX_KEY, request.getProducer());
         Context previousCtx = ctx.attach();
-        AtomicReference<StreamObserver<CommandSend>> producer = new AtomicReference<>();
+        // The producer success can be received before produce() returns if the topic is already loaded
+        CompletableFuture<StreamObserver<CommandSend>> producer = new CompletableFuture<>();
         StreamObserver<SendResult> produceObserver = new CallStreamObserver<SendResult>() {
             @Override
             public boolean isReady() {
@@ -757,14 +849,14 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
             public void onNext(SendResult sendResult) {
                 if (sendResult.hasSendReceipt()) {
                     responseObserver.onNext(sendResult.getSendReceipt());
-                    producer.get().onCompleted();
+                    producer.thenAccept(StreamObserver::onCompleted);
                 } else if (sendResult.hasSendError()) {
                     CommandSendError sendError = sendResult.getSendError();
                     responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION, sendError.getMessage(),
                             null, sendError.getError()));
-                    producer.get().onCompleted();
+                    producer.thenAccept(StreamObserver::onCompleted);
                 } else if (sendResult.hasProducerSuccess()) {
-                    producer.get().onNext(request.getSend());
+                    producer.thenAccept(observer -> observer.onNext(request.getSend()));
                 }
             }
 
@@ -778,12 +870,32 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                 responseObserver.onCompleted();
             }
         };
-        producer.set(produce(produceObserver));
+        producer.complete(produce(produceObserver));
         ctx.detach(previousCtx);
     }
 
     @Override
     public StreamObserver<CommandSend> produce(StreamObserver<SendResult> responseObserver) {
+        StreamObserver<CommandSendFrame> frameObserver = produceFrames(responseObserver);
+        return new StreamObserver<CommandSend>() {
+            @Override
+            public void onNext(CommandSend cmd) {
+                frameObserver.onNext(CommandSendFrame.of(cmd));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                frameObserver.onError(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+                frameObserver.onCompleted();
+            }
+        };
+    }
+
+    private StreamObserver<CommandSendFrame> produceFrames(StreamObserver<SendResult> responseObserver) {
         final CommandProducer cmdProducer = PRODUCER_PARAMS_CTX_KEY.get();
         if (cmdProducer == null) {
             responseObserver
@@ -808,9 +920,6 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
         final Optional<Long> topicEpoch = cmdProducer.hasTopicEpoch()
             ? Optional.of(cmdProducer.getTopicEpoch()) : Optional.empty();
 
-        ProducerCnx cnx = new ProducerCnx(service, remoteAddress, authRole, authenticationData,
-                responseObserver, eventLoopGroup.next());
-
         TopicName topicName;
         try {
             topicName = TopicName.get(cmdProducer.getTopic());
@@ -823,6 +932,15 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
             return NoOpStreamObserver.create();
         }
 
+        // The sends are handed over to the event loop of the producer if they are not read on it
+        ProducerCnx cnx = new ProducerCnx(service, remoteAddress, authRole, authenticationData,
+                responseObserver, currentEventLoop(), compressionExecutor, publishBufferLimiter, cmdProducer);
+        // The inbound observer is not closed when the server fails the call
+        final java.util.function.Consumer<StatusRuntimeException> failProduce = error -> {
+            cnx.streamClosed();
+            responseObserver.onError(error);
+        };
+
         CompletableFuture<Boolean> isAuthorizedFuture = isTopicOperationAllowed(
                 topicName, TopicOperation.PRODUCE, authRole, authenticationData
         );
@@ -843,10 +961,10 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                             BacklogQuota.RetentionPolicy retentionPolicy =
                                 topic.getBacklogQuota(backlogQuotaType).getPolicy();
                             if (retentionPolicy == BacklogQuota.RetentionPolicy.producer_request_hold) {
-                                responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION,
+                                failProduce.accept(newStatusException(Status.FAILED_PRECONDITION,
                                     illegalStateException, ServerError.ProducerBlockedQuotaExceededError));
                             } else if (retentionPolicy == BacklogQuota.RetentionPolicy.producer_exception) {
-                                responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION,
+                                failProduce.accept(newStatusException(Status.FAILED_PRECONDITION,
                                     illegalStateException, ServerError.ProducerBlockedQuotaExceededException));
                             }
                             producerFuture.completeExceptionally(illegalStateException);
@@ -859,7 +977,7 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                             && !isEncrypted) {
                         String msg = String.format("Encryption is required in %s", topicName);
                         log.warn("[{}] {}", remoteAddress, msg);
-                        responseObserver.onError(newStatusException(Status.INVALID_ARGUMENT, msg, null,
+                        failProduce.accept(newStatusException(Status.INVALID_ARGUMENT, msg, null,
                                 ServerError.MetadataError));
                         return;
                     }
@@ -867,7 +985,7 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                     CompletableFuture<SchemaVersion> schemaVersionFuture = tryAddSchema(topic, schema, remoteAddress);
 
                     schemaVersionFuture.exceptionally(exception -> {
-                        responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION, exception,
+                        failProduce.accept(newStatusException(Status.FAILED_PRECONDITION, exception,
                                 convertServerError(BrokerServiceException.getClientErrorCode(exception))));
                         return null;
                     });
@@ -898,7 +1016,7 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
 
                             producer.closeNow(true);
                             if (producerFuture.completeExceptionally(ex)) {
-                                responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION, ex,
+                                failProduce.accept(newStatusException(Status.FAILED_PRECONDITION, ex,
                                     convertServerError(BrokerServiceException.getClientErrorCode(ex))));
                             }
                             return null;
@@ -926,7 +1044,7 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                     }
 
                     if (producerFuture.completeExceptionally(exception)) {
-                        responseObserver.onError(newStatusException(Status.FAILED_PRECONDITION, cause,
+                        failProduce.accept(newStatusException(Status.FAILED_PRECONDITION, cause,
                                 convertServerError(BrokerServiceException.getClientErrorCode(cause))));
                     }
                     return null;
@@ -934,44 +1052,60 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
             } else {
                 final String msg = "Client is not authorized to Produce";
                 log.warn("[{}] {} with role {} on topic {}", remoteAddress, msg, authRole, topicName);
-                responseObserver.onError(newStatusException(Status.PERMISSION_DENIED, msg, null,
+                failProduce.accept(newStatusException(Status.PERMISSION_DENIED, msg, null,
                         ServerError.AuthorizationError));
             }
             return null;
         }).exceptionally(ex -> {
             String msg = String.format("[%s] %s with role %s", remoteAddress, ex.getMessage(), authRole);
             log.warn(msg);
-            responseObserver.onError(newStatusException(Status.PERMISSION_DENIED, ex, ServerError.AuthorizationError));
+            failProduce.accept(newStatusException(Status.PERMISSION_DENIED, ex, ServerError.AuthorizationError));
             return null;
         });
 
-        return new StreamObserver<CommandSend>() {
+        return new StreamObserver<CommandSendFrame>() {
             @Override
-            public void onNext(CommandSend cmd) {
+            public void onNext(CommandSendFrame frame) {
                 if (!producerFuture.isDone() || producerFuture.isCompletedExceptionally()) {
                     log.warn("[{}] Producer unavailable", remoteAddress);
+                    frame.release();
+                    cnx.onMessageHandled();
                     return;
                 }
                 Producer producer = producerFuture.join();
-                cnx.execute(() -> cnx.handleSend(cmd, producer));
+                cnx.send(frame, producer);
             }
 
             @Override
             public void onError(Throwable throwable) {
-                closeProduce(producerFuture, remoteAddress);
-                responseObserver.onCompleted();
+                close();
             }
 
             @Override
             public void onCompleted() {
-                closeProduce(producerFuture, remoteAddress);
-                responseObserver.onCompleted();
+                close();
+            }
+
+            private void close() {
+                // Close after the messages already received have been published
+                cnx.executeAfterPendingSends(() -> {
+                    closeProduce(producerFuture, remoteAddress);
+                    cnx.streamClosed();
+                    responseObserver.onCompleted();
+                });
             }
         };
     }
 
     @Override
     public StreamObserver<ConsumeInput> consume(StreamObserver<ConsumeOutput> responseObserver) {
+        return consumeFrames(new MappingStreamObserver<>((CallStreamObserver<ConsumeOutput>) responseObserver,
+                ConsumeOutputFrame::toConsumeOutput));
+    }
+
+    private StreamObserver<ConsumeInput> consumeFrames(StreamObserver<ConsumeOutputFrame> frameObserver) {
+        final StreamObserver<ConsumeOutput> responseObserver = new MappingStreamObserver<>(
+                (CallStreamObserver<ConsumeOutputFrame>) frameObserver, ConsumeOutputFrame::of);
         final CommandSubscribe subscribe = CONSUMER_PARAMS_CTX_KEY.get();
         final String authRole = AUTH_ROLE_CTX_KEY.get();
         AuthenticationDataSource authenticationData = AUTH_DATA_CTX_KEY.get();
@@ -1021,43 +1155,75 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
             //consumer.flowPermits(1);
         });
 
-        CallStreamObserver<ConsumeOutput> consumerResponseObserver =
-                (CallStreamObserver<ConsumeOutput>) responseObserver;
+        CallStreamObserver<ConsumeOutputFrame> consumerResponseObserver =
+                (CallStreamObserver<ConsumeOutputFrame>) frameObserver;
         consumerResponseObserver.disableAutoInboundFlowControl();
 
-        class OnReadyHandler implements Runnable {
-            // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the transport
-            // toggles isReady() from false to true while onNext() is executing, but before onNext() checks isReady(),
-            // request(1) would be called twice - once by onNext() and once by the onReady() scheduled during onNext()'s
-            // execution.
-            private boolean wasReady = false;
-
-            @Override
-            public void run() {
-                if (consumerResponseObserver.isReady() && !wasReady) {
-                    wasReady = true;
-                    consumerFuture.thenAccept(consumer -> consumer.flowPermits(1));
-                    consumerResponseObserver.request(1);
+        final Runnable onReadyHandler;
+        final SentMessagesCallback cb;
+        if (subscribe.getFlowPermitsWindow() > 0) {
+            BatchedFlowPermits flowPermits = new BatchedFlowPermits(consumerResponseObserver, consumerFuture,
+                    subscribe.getFlowPermitsWindow());
+            onReadyHandler = flowPermits::onReady;
+            cb = flowPermits::messagesSent;
+        } else {
+            class OnReadyHandler implements Runnable {
+                // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the
+                // transport toggles isReady() from false to true while onNext() is executing, but before onNext()
+                // checks isReady(), request(1) would be called twice - once by onNext() and once by the onReady()
+                // scheduled during onNext()'s execution.
+                private boolean wasReady = false;
+
+                @Override
+                public void run() {
+                    if (consumerResponseObserver.isReady() && !wasReady) {
+                        wasReady = true;
+                        consumerFuture.thenAccept(consumer -> consumer.flowPermits(1));
+                        consumerResponseObserver.request(1);
+                    }
                 }
             }
-        }
 
-        final OnReadyHandler onReadyHandler = new OnReadyHandler();
-        consumerResponseObserver.setOnReadyHandler(onReadyHandler);
+            final OnReadyHandler readyHandler = new OnReadyHandler();
+            onReadyHandler = readyHandler;
+            cb = (numMessages, inboundRequested) -> {
+                if (consumerResponseObserver.isReady()) {
+                    consumerFuture.thenAccept(consumer -> consumer.flowPermits(numMessages));
+                    if (!inboundRequested) {
+                        consumerResponseObserver.request(numMessages);
+                    }
+                } else {
+                    // Back-pressure has begun.
+                    readyHandler.wasReady = false;
+                }
+            };
+        }
 
-        java.util.function.Consumer<Integer> cb = numMessages -> {
-            if (consumerResponseObserver.isReady()) {
-                consumerFuture.thenAccept(consumer -> consumer.flowPermits(numMessages));
-                consumerResponseObserver.request(numMessages);
-            } else {
-                // Back-pressure has begun.
-                onReadyHandler.wasReady = false;
-            }
-        };
+        // The event loop of the stream if the transport uses a direct executor on the service event loops, so that the
+        // acks read during the same run of the event loop are coalesced. Otherwise the acks added before the flush
+        // task runs on this event loop are coalesced.
+        final EventLoop eventLoop = currentEventLoop();
+        final UnackedMessageTracker unackedMessageTracker;
+        if (!subscribe.getAckOnDelivery() && (subType == SubType.Shared || subType == SubType.Key_Shared)
+                && (subscribe.getAckTimeoutMillis() > 0 || subscribe.getNegativeAckRedeliveryDelayMillis() > 0)) {
+            unackedMessageTracker = new UnackedMessageTracker(consumerFuture, subscribe.getAckTimeoutMillis(),
+                    subscribe.getNegativeAckRedeliveryDelayMillis());
+            consumerFuture.thenAccept(consumer -> unackedMessageTracker.start(eventLoop));
+        } else {
+            unackedMessageTracker = null;
+        }
 
         ConsumerCnx cnx =
                 new ConsumerCnx(service, remoteAddress, authRole, authenticationData, consumerResponseObserver,
-                        subscribe.getPreferedPayloadType(), cb);
+                        subscribe.getPreferedPayloadType(), new AutoPayloadType(subscribe, brokerCpuUsage),
+                        subscribe.getMaxPackedMessagesSize(), messageBodyCache,
+                        subscribe.getAckOnDelivery() ? new AckOnDelivery(consumerFuture) : unackedMessageTracker,
+                        outboundBytesLimiter, cb);
+        consumerResponseObserver.setOnReadyHandler(() -> {
+            onReadyHandler.run();
+            cnx.onReady();
+        });
+        consumerFuture.thenAccept(cnx::setConsumer);
 
         CompletableFuture<Boolean> isAuthorizedFuture = isTopicOperationAllowed(
                 topicName,
@@ -1179,6 +1345,8 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
             return null;
         });
 
+        CoalescedAcks coalescedAcks = new CoalescedAcks(eventLoop, unackedMessageTracker);
+
         return new StreamObserver<ConsumeInput>() {
             @Override
             public void onNext(ConsumeInput consumeInput) {
@@ -1187,11 +1355,37 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                 if (consumerFuture.isDone() && !consumerFuture.isCompletedExceptionally()) {
                     consumer = consumerFuture.join();
                 }
+                if (consumeInput.getConsumerInputOneofCase() != ConsumeInput.ConsumerInputOneofCase.ACK
+                        || !CoalescedAcks.canCoalesce(consumeInput.getAck())) {
+                    // Keep the order of the commands
+                    coalescedAcks.flush();
+                }
                 long requestId;
                 switch (consumeInput.getConsumerInputOneofCase()) {
                     case ACK:
                         if (consumer != null) {
-                            CommandAck ack = convertCommandAck(consumeInput.getAck(), consumer.consumerId());
+                            if (CoalescedAcks.canCoalesce(consumeInput.getAck())) {
+                                try {
+                                    coalescedAcks.add(consumer, consumeInput.getAck());
+                                } catch (IllegalArgumentException e) {
+                                    log.warn("[{}] Invalid ack: {}", remoteAddress, e.getMessage());
+                                }
+                                break;
+                            }
+                            CommandAck ack;
+                            try {
+                                ack = convertCommandAck(consumeInput.getAck(), consumer.consumerId());
+                            } catch (IllegalArgumentException e) {
+                                if (consumeInput.getAck().hasRequestId()) {
+                                    responseObserver.onNext(Commands.newAckResponse(
+                                            consumeInput.getAck().getRequestId(), ServerError.MetadataError,
+                                            e.getMessage()));
+                                }
+                                break;
+                            }
+                            if (unackedMessageTracker != null) {
+                                unackedMessageTracker.acked(ack);
+                            }
                             consumer.messageAcked(ack).thenRun(() -> {
                                 if (ack.hasRequestId()) {
                                     responseObserver.onNext(Commands.newAckResponse(
@@ -1210,10 +1404,14 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                     case FLOW:
                         CommandFlow flow = consumeInput.getFlow();
                         if (log.isDebugEnabled()) {
-                            log.debug("[{}] Received flow permits: {}", remoteAddress, flow.getMessagePermits());
+                            log.debug("[{}] Received flow permits: {} messages, {} bytes", remoteAddress,
+                                    flow.getMessagePermits(), flow.getBytePermits());
                         }
 
-                        if (consumer != null) {
+                        if (flow.hasBytePermits()) {
+                            cnx.addBytePermits(flow.getBytePermits());
+                        }
+                        if (consumer != null && flow.getMessagePermits() > 0) {
                             consumer.flowPermits(flow.getMessagePermits());
                         }
                         break;
@@ -1267,6 +1465,23 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
                             }
                         }
                         break;
+                    case NEGATIVEACK:
+                        CommandNegativeAck negativeAck = consumeInput.getNegativeAck();
+                        if (consumer == null || negativeAck.getMessageIdsCount() == 0) {
+                            break;
+                        }
+                        if (unackedMessageTracker != null) {
+                            negativeAck.getMessageIdsList().forEach(messageId ->
+                                    unackedMessageTracker.negativeAcked(messageId.getLedgerId(),
+                                            messageId.getEntryId()));
+                        } else if (Subscription.isIndividualAckMode(consumer.subType())) {
+                            consumer.redeliverUnacknowledgedMessages(negativeAck.getMessageIdsList().stream()
+                                    .map(Commands::convertMessageIdData)
+                                    .collect(Collectors.toList()));
+                        } else {
+                            consumer.redeliverUnacknowledgedMessages();
+                        }
+                        break;
                     case GETLASTMESSAGEID:
                         if (consumer != null) {
                             CommandGetLastMessageId getLastMessageId = consumeInput.getGetLastMessageId();
@@ -1350,16 +1565,42 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
 
             @Override
             public void onError(Throwable throwable) {
+                coalescedAcks.flush();
                 closeConsume(consumerFuture, remoteAddress, responseObserver);
             }
 
             @Override
             public void onCompleted() {
+                coalescedAcks.flush();
                 closeConsume(consumerFuture, remoteAddress, responseObserver);
             }
         };
     }
 
+    @Override
+    public StreamObserver<SessionInput> session(StreamObserver<SessionOutput> responseObserver) {
+        return sessionFrames(new MappingStreamObserver<>((CallStreamObserver<SessionOutput>) responseObserver,
+                SessionOutputFrame::toSessionOutput));
+    }
+
+    private StreamObserver<SessionInput> sessionFrames(StreamObserver<SessionOutputFrame> responseObserver) {
+        return new GrpcSession((CallStreamObserver<SessionOutputFrame>) responseObserver, REMOTE_ADDRESS_CTX_KEY.get(),
+                (producerParams, observer) ->
+                        callWithContext(PRODUCER_PARAMS_CTX_KEY, producerParams, () -> produce(observer)),
+                (consumerParams, observer) ->
+                        callWithContext(CONSUMER_PARAMS_CTX_KEY, consumerParams, () -> consumeFrames(observer)));
+    }
+
+    private static <T, R> R callWithContext(Context.Key<T> key, T value, Supplier<R> supplier) {
+        Context ctx = Context.current().withValue(key, value);
+        Context previousCtx = ctx.attach();
+        try {
+            return supplier.get();
+        } finally {
+            ctx.detach(previousCtx);
+        }
+    }
+
     private void getLargestBatchIndexWhenPossible(
             Topic topic,
             PositionImpl position,
@@ -1459,6 +1700,61 @@ class PulsarGrpcService extends PulsarGrpc.PulsarImplBase {
         }
     }
 
+    /**
+     * Sends the values on a stream of another type, mapping each value on {@code onNext}.
+     * The flow control is delegated to the mapped stream.
+     */
+    private static class MappingStreamObserver<T, R> extends CallStreamObserver<T> {
+
+        private final CallStreamObserver<R> delegate;
+        private final Function<T, R> mapper;
+
+        private MappingStreamObserver(CallStreamObserver<R> delegate, Function<T, R> mapper) {
+            this.delegate = delegate;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            delegate.setOnReadyHandler(onReadyHandler);
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            delegate.disableAutoInboundFlowControl();
+        }
+
+        @Override
+        public void request(int count) {
+            delegate.request(count);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            delegate.setMessageCompression(enable);
+        }
+
+        @Override
+        public void onNext(T value) {
+            delegate.onNext(mapper.apply(value));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            delegate.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            delegate.onCompleted();
+        }
+    }
+
     private static class NoOpStreamObserver<T> implements StreamObserver<T> {
 
         private NoOpStreamObserver() {
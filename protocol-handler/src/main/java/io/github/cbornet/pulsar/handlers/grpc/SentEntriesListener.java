@@ -0,0 +1,35 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+
+import java.util.List;
+
+/**
+ * Listener of the entries sent to a consumer by the {@link ConsumerCommandSender}.
+ */
+interface SentEntriesListener {
+
+    /**
+     * Called when the entries of a dispatch have been sent on the stream.
+     */
+    void entriesSent(List<PositionImpl> positions);
+
+    /**
+     * Called when the consumer has been removed from its subscription.
+     */
+    default void consumerRemoved() {
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+/**
+ * Callback of the messages sent to a consumer by the {@link ConsumerCommandSender}.
+ */
+@FunctionalInterface
+interface SentMessagesCallback {
+
+    /**
+     * Called when the flow permits of messages sent on the stream can be given back to the consumer. The callback
+     * requests as many inbound messages from the client unless they were already requested when the messages were
+     * sent.
+     *
+     * @param count the number of messages
+     * @param inboundRequested true if the inbound messages were already requested
+     */
+    void messagesSent(int count, boolean inboundRequested);
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
+
+/**
+ * A {@link SessionOutput} to send on a session stream.
+ *
+ * <p>The outputs of the consumers hold their {@link ConsumeOutputFrame} so that serialized messages are written by
+ * {@link SessionOutputMarshaller} without being parsed into a {@link SessionOutput}.
+ * The frame doesn't own the consume frame, which is released by its consumer once {@code onNext} returns.
+ */
+class SessionOutputFrame {
+
+    private final SessionOutput output;
+    private final long consumerId;
+    private final ConsumeOutputFrame consumeOutput;
+
+    private SessionOutputFrame(SessionOutput output, long consumerId, ConsumeOutputFrame consumeOutput) {
+        this.output = output;
+        this.consumerId = consumerId;
+        this.consumeOutput = consumeOutput;
+    }
+
+    static SessionOutputFrame of(SessionOutput output) {
+        return new SessionOutputFrame(output, 0, null);
+    }
+
+    static SessionOutputFrame newConsumeOutput(long consumerId, ConsumeOutputFrame consumeOutput) {
+        return new SessionOutputFrame(null, consumerId, consumeOutput);
+    }
+
+    /**
+     * Returns the frame as a {@link SessionOutput} object. Serialized consume frames are parsed which involves a copy.
+     */
+    SessionOutput toSessionOutput() {
+        if (output != null) {
+            return output;
+        }
+        return Commands.newSessionConsumeOutput(consumerId, consumeOutput.toConsumeOutput());
+    }
+
+    SessionOutput getOutput() {
+        return output;
+    }
+
+    long getConsumerId() {
+        return consumerId;
+    }
+
+    ConsumeOutputFrame getConsumeOutput() {
+        return consumeOutput;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import com.google.protobuf.CodedOutputStream;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSessionConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
+
+import java.io.InputStream;
+
+import static io.github.cbornet.pulsar.handlers.grpc.ConsumeOutputFrame.computeLengthDelimitedSize;
+import static io.github.cbornet.pulsar.handlers.grpc.ConsumeOutputFrame.writeLengthDelimitedTag;
+import static io.github.cbornet.pulsar.handlers.grpc.ConsumeOutputFrame.writeVarintField;
+
+/**
+ * Marshaller for the responses of the session RPC.
+ *
+ * <p>The serialized consume frames are spliced in the session output after the headers of the
+ * {@link CommandSessionConsumeOutput}, so that the messages of the consumers of a session are streamed as on a consume
+ * call, without being parsed into a protobuf copy.
+ */
+class SessionOutputMarshaller implements MethodDescriptor.Marshaller<SessionOutputFrame> {
+
+    private static final MethodDescriptor.Marshaller<SessionOutput> SESSION_OUTPUT_MARSHALLER =
+            ProtoUtils.marshaller(SessionOutput.getDefaultInstance());
+
+    @Override
+    public InputStream stream(SessionOutputFrame frame) {
+        ConsumeOutputFrame consumeOutput = frame.getConsumeOutput();
+        ByteBuf content = consumeOutput == null ? null : consumeOutput.retainedContent();
+        if (content == null) {
+            return SESSION_OUTPUT_MARSHALLER.stream(frame.toSessionOutput());
+        }
+        int contentSize = content.readableBytes();
+        int outputSize = 1 + CodedOutputStream.computeUInt64SizeNoTag(frame.getConsumerId())
+                + computeLengthDelimitedSize(contentSize);
+        int headersSize = computeLengthDelimitedSize(outputSize) - contentSize;
+        ByteBuf headers = PulsarByteBufAllocator.DEFAULT.buffer(headersSize, headersSize);
+        writeLengthDelimitedTag(headers, SessionOutput.CONSUME_OUTPUT_FIELD_NUMBER, outputSize);
+        writeVarintField(headers, CommandSessionConsumeOutput.CONSUMER_ID_FIELD_NUMBER, frame.getConsumerId());
+        writeLengthDelimitedTag(headers, CommandSessionConsumeOutput.OUTPUT_FIELD_NUMBER, contentSize);
+        CompositeByteBuf output = PulsarByteBufAllocator.DEFAULT.compositeBuffer(2);
+        output.addComponents(true, headers, content);
+        return new ConsumeOutputMarshaller.DrainableByteBufInputStream(output);
+    }
+
+    @Override
+    public SessionOutputFrame parse(InputStream stream) {
+        return SessionOutputFrame.of(SESSION_OUTPUT_MARSHALLER.parse(stream));
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.util.collections.ConcurrentLongLongPairHashMap;
+import org.apache.pulsar.broker.service.Consumer;
+import org.apache.pulsar.common.api.proto.CommandAck;
+import org.apache.pulsar.common.api.proto.MessageIdData;
+import org.apache.pulsar.common.util.collections.ConcurrentLongPairSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Redelivers the messages of a Shared or Key_Shared consumer that are not acked before the ack timeout, and the
+ * negatively acked messages after the negative ack redelivery delay.
+ *
+ * <p>The positions of the messages are kept in a hashed timing wheel ticked by a single task per stream, without
+ * any per-message timer object. Each position is added to the bucket of its deadline tick and its deadline is kept in
+ * a primitive map so that the acked, negatively acked or resent messages don't have to be looked up in the buckets:
+ * when a bucket is reached, only the positions whose deadline is the current tick and that are still pending ack on
+ * the consumer are redelivered, by batches.
+ *
+ * <p>The buckets and the deadlines are concurrent collections so the messages are tracked without locking the
+ * tracker. A position added to the bucket of the current tick while it is being expired is redelivered when the
+ * bucket is reached again on the next round of the wheel.
+ */
+class UnackedMessageTracker implements SentEntriesListener {
+
+    static final long TICK_MILLIS = 100;
+    // Must be a power of 2
+    private static final int WHEEL_SIZE = 512;
+    private static final int MAX_REDELIVERY_BATCH_SIZE = 1000;
+
+    private final CompletableFuture<Consumer> consumerFuture;
+    private final long ackTimeoutTicks;
+    private final long negativeAckDelayTicks;
+    private final AtomicReferenceArray<ConcurrentLongPairSet> wheel = new AtomicReferenceArray<>(WHEEL_SIZE);
+    // Deadline tick of the tracked positions
+    private final ConcurrentLongLongPairHashMap deadlines = new ConcurrentLongLongPairHashMap();
+    // Only advanced by the tick task
+    private volatile long currentTick = 0;
+    private ScheduledFuture<?> tickTask = null;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates the tracker. An ack timeout of 0 disables it. The negatively acked messages are redelivered on the next
+     * tick if the negative ack redelivery delay is 0.
+     */
+    UnackedMessageTracker(CompletableFuture<Consumer> consumerFuture, long ackTimeoutMillis,
+            long negativeAckRedeliveryDelayMillis) {
+        this.consumerFuture = consumerFuture;
+        this.ackTimeoutTicks = ackTimeoutMillis > 0 ? toTicks(ackTimeoutMillis) : 0;
+        this.negativeAckDelayTicks = toTicks(negativeAckRedeliveryDelayMillis);
+    }
+
+    private static long toTicks(long millis) {
+        return Math.max(1, (millis + TICK_MILLIS - 1) / TICK_MILLIS);
+    }
+
+    /**
+     * Starts ticking the wheel on an executor.
+     */
+    synchronized void start(ScheduledExecutorService executor) {
+        if (!stopped && tickTask == null) {
+            tickTask = executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void consumerRemoved() {
+        stopped = true;
+        if (tickTask != null) {
+            tickTask.cancel(false);
+        }
+        deadlines.clear();
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.set(i, null);
+        }
+    }
+
+    @Override
+    public void entriesSent(List<PositionImpl> positions) {
+        if (stopped || ackTimeoutTicks == 0) {
+            return;
+        }
+        for (PositionImpl position : positions) {
+            schedule(position.getLedgerId(), position.getEntryId(), ackTimeoutTicks);
+        }
+    }
+
+    /**
+     * Stops tracking the messages of an individual ack. The entries of the batch messages acked with an ack set are
+     * kept tracked since the other messages of the batch may not be acked yet.
+     */
+    void acked(CommandAck ack) {
+        for (int i = 0; i < ack.getMessageIdsCount(); i++) {
+            MessageIdData messageId = ack.getMessageIdAt(i);
+            if (messageId.getAckSetsCount() == 0) {
+                deadlines.remove(messageId.getLedgerId(), messageId.getEntryId());
+            }
+        }
+    }
+
+    /**
+     * Schedules the redelivery of a negatively acked message.
+     */
+    void negativeAcked(long ledgerId, long entryId) {
+        if (stopped) {
+            return;
+        }
+        schedule(ledgerId, entryId, negativeAckDelayTicks);
+    }
+
+    private void schedule(long ledgerId, long entryId, long ticks) {
+        long deadline = currentTick + ticks;
+        deadlines.put(ledgerId, entryId, deadline, 0);
+        int index = (int) (deadline & (WHEEL_SIZE - 1));
+        ConcurrentLongPairSet bucket = wheel.get(index);
+        if (bucket == null) {
+            bucket = new ConcurrentLongPairSet(16, 1);
+            if (!wheel.compareAndSet(index, null, bucket)) {
+                bucket = wheel.get(index);
+            }
+        }
+        bucket.add(ledgerId, entryId);
+    }
+
+    /**
+     * Advances the wheel by one tick and redelivers the expired messages that are still pending ack.
+     * Called every {@link #TICK_MILLIS} milliseconds once started.
+     */
+    void tick() {
+        Consumer consumer = consumerFuture.getNow(null);
+        List<MessageIdData> expired = expire(consumer);
+        for (int i = 0; i < expired.size(); i += MAX_REDELIVERY_BATCH_SIZE) {
+            consumer.redeliverUnacknowledgedMessages(
+                    expired.subList(i, Math.min(expired.size(), i + MAX_REDELIVERY_BATCH_SIZE)));
+        }
+    }
+
+    private List<MessageIdData> expire(Consumer consumer) {
+        long tick = currentTick + 1;
+        currentTick = tick;
+        int index = (int) (tick & (WHEEL_SIZE - 1));
+        ConcurrentLongPairSet bucket = wheel.get(index);
+        List<MessageIdData> expired = new ArrayList<>();
+        if (bucket == null || bucket.isEmpty()) {
+            return expired;
+        }
+        ConcurrentLongLongPairHashMap pendingAcks = consumer != null ? consumer.getPendingAcks() : null;
+        bucket.removeIf((ledgerId, entryId) -> {
+            while (true) {
+                ConcurrentLongLongPairHashMap.LongPair deadline = deadlines.get(ledgerId, entryId);
+                if (deadline == null || (deadline.first & (WHEEL_SIZE - 1)) != index) {
+                    // Acked or rescheduled on another bucket
+                    return true;
+                }
+                if (deadline.first > tick) {
+                    // Rescheduled on a later round of the wheel
+                    return false;
+                }
+                // The deadline may be before the current tick if the position was added to the bucket while the
+                // bucket was being expired. Retry if the position is acked or rescheduled concurrently.
+                if (deadlines.remove(ledgerId, entryId, deadline.first, deadline.second)) {
+                    if (pendingAcks != null && pendingAcks.containsKey(ledgerId, entryId)) {
+                        expired.add(new MessageIdData().setLedgerId(ledgerId).setEntryId(entryId));
+                    }
+                    return true;
+                }
+            }
+        });
+        return expired;
+    }
+
+    /**
+     * Returns the number of tracked messages.
+     */
+    long size() {
+        return deadlines.size();
+    }
+}
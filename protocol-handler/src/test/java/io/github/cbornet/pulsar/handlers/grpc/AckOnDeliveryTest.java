@@ -0,0 +1,75 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.Consumer;
+import org.apache.pulsar.common.api.proto.CommandAck;
+import org.apache.pulsar.common.api.proto.CommandSubscribe.SubType;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests for {@link AckOnDelivery}.
+ */
+public class AckOnDeliveryTest {
+
+    @Test
+    public void testExclusiveEntriesAckedCumulatively() {
+        Consumer consumer = newConsumer(SubType.Exclusive);
+        new AckOnDelivery(CompletableFuture.completedFuture(consumer)).entriesSent(Arrays.asList(
+                PositionImpl.get(1, 1), PositionImpl.get(2, 0), PositionImpl.get(1, 5)));
+
+        CommandAck ack = captureAck(consumer);
+        assertEquals(ack.getAckType(), CommandAck.AckType.Cumulative);
+        assertEquals(ack.getMessageIdsCount(), 1);
+        assertEquals(ack.getMessageIdAt(0).getLedgerId(), 2);
+        assertEquals(ack.getMessageIdAt(0).getEntryId(), 0);
+    }
+
+    @Test
+    public void testSharedEntriesAckedIndividually() {
+        Consumer consumer = newConsumer(SubType.Shared);
+        new AckOnDelivery(CompletableFuture.completedFuture(consumer)).entriesSent(Arrays.asList(
+                PositionImpl.get(1, 1), PositionImpl.get(1, 3)));
+
+        CommandAck ack = captureAck(consumer);
+        assertEquals(ack.getAckType(), CommandAck.AckType.Individual);
+        assertEquals(ack.getMessageIdsCount(), 2);
+        assertEquals(ack.getMessageIdAt(0).getEntryId(), 1);
+        assertEquals(ack.getMessageIdAt(1).getEntryId(), 3);
+    }
+
+    private static Consumer newConsumer(SubType subType) {
+        Consumer consumer = mock(Consumer.class);
+        doReturn(subType).when(consumer).subType();
+        doReturn(CompletableFuture.completedFuture(null)).when(consumer).messageAcked(any());
+        return consumer;
+    }
+
+    private static CommandAck captureAck(Consumer consumer) {
+        ArgumentCaptor<CommandAck> captor = ArgumentCaptor.forClass(CommandAck.class);
+        verify(consumer).messageAcked(captor.capture());
+        return captor.getValue();
+    }
+}
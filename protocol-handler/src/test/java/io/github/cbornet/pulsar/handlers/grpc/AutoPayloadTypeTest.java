@@ -0,0 +1,104 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import org.apache.pulsar.broker.PulsarService;
+import org.apache.pulsar.broker.ServiceConfiguration;
+import org.apache.pulsar.broker.loadbalance.LoadManager;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.policies.data.loadbalancer.LocalBrokerData;
+import org.apache.pulsar.policies.data.loadbalancer.ResourceUsage;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests for {@link AutoPayloadType}.
+ */
+public class AutoPayloadTypeTest {
+
+    @Test
+    public void testEncryptedMessageSentAsBinary() {
+        AutoPayloadType autoPayloadType = new AutoPayloadType(0, 0, () -> 0);
+        MessageMetadata metadata = newMetadata();
+        metadata.addEncryptionKey().setKey("key").setValue(new byte[] {1});
+
+        assertEquals(autoPayloadType.select(metadata, 100), PayloadType.BINARY);
+        assertEquals(autoPayloadType.select(null, 100), PayloadType.BINARY);
+        assertEquals(autoPayloadType.select(newMetadata(), 100), PayloadType.MESSAGES);
+    }
+
+    @Test
+    public void testBigMessageSentAsBinary() {
+        AutoPayloadType autoPayloadType = new AutoPayloadType(1000, 0, () -> 0);
+        assertEquals(autoPayloadType.select(newMetadata(), 1000), PayloadType.MESSAGES);
+        assertEquals(autoPayloadType.select(newMetadata(), 1001), PayloadType.BINARY);
+
+        MessageMetadata compressed = newMetadata()
+                .setCompression(CompressionType.LZ4)
+                .setUncompressedSize(2000);
+        assertEquals(autoPayloadType.select(compressed, 100), PayloadType.BINARY);
+    }
+
+    @Test
+    public void testCompressedMessageSentAsBinaryWhenBrokerBusy() {
+        double[] cpuUsage = new double[] {50};
+        AutoPayloadType autoPayloadType = new AutoPayloadType(0, 80, () -> cpuUsage[0]);
+        MessageMetadata compressed = newMetadata()
+                .setCompression(CompressionType.ZSTD)
+                .setUncompressedSize(200);
+
+        assertEquals(autoPayloadType.select(compressed, 100), PayloadType.MESSAGES);
+        cpuUsage[0] = 90;
+        assertEquals(autoPayloadType.select(compressed, 100), PayloadType.BINARY);
+        assertEquals(autoPayloadType.select(newMetadata(), 100), PayloadType.MESSAGES);
+    }
+
+    @Test
+    public void testBrokerCpuUsageFromLoadManager() throws Exception {
+        PulsarService pulsar = mock(PulsarService.class);
+        doReturn(new ServiceConfiguration()).when(pulsar).getConfiguration();
+        AtomicReference<LoadManager> loadManagerReference = new AtomicReference<>();
+        doReturn(loadManagerReference).when(pulsar).getLoadManager();
+
+        // No load manager yet
+        assertEquals(AutoPayloadType.newBrokerCpuUsage(pulsar).getAsDouble(), 0.0);
+
+        LocalBrokerData loadReport = new LocalBrokerData();
+        loadReport.setCpu(new ResourceUsage(150, 200));
+        LoadManager loadManager = mock(LoadManager.class);
+        doReturn(loadReport).when(loadManager).generateLoadReport();
+        loadManagerReference.set(loadManager);
+
+        DoubleSupplier brokerCpuUsage = AutoPayloadType.newBrokerCpuUsage(pulsar);
+        assertEquals(brokerCpuUsage.getAsDouble(), 75.0);
+        // Not sampled again before the host usage check interval
+        loadReport.setCpu(new ResourceUsage(50, 200));
+        assertEquals(brokerCpuUsage.getAsDouble(), 75.0);
+    }
+
+    private static MessageMetadata newMetadata() {
+        return new MessageMetadata()
+                .setProducerName("test-producer")
+                .setSequenceId(1)
+                .setPublishTime(1000);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.grpc.stub.CallStreamObserver;
+import org.apache.pulsar.broker.service.Consumer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for {@link BatchedFlowPermits}.
+ */
+public class BatchedFlowPermitsTest {
+
+    private CallStreamObserver<ConsumeOutputFrame> responseObserver;
+    private Consumer consumer;
+    private BatchedFlowPermits flowPermits;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        responseObserver = mock(CallStreamObserver.class);
+        consumer = mock(Consumer.class);
+        flowPermits = new BatchedFlowPermits(responseObserver, CompletableFuture.completedFuture(consumer), 10);
+    }
+
+    @Test
+    public void testWindowGivenWhenReady() {
+        doReturn(false).when(responseObserver).isReady();
+        flowPermits.onReady();
+        verify(consumer, never()).flowPermits(anyInt());
+
+        doReturn(true).when(responseObserver).isReady();
+        flowPermits.onReady();
+        verify(consumer, times(1)).flowPermits(10);
+        verify(responseObserver, times(1)).request(10);
+    }
+
+    @Test
+    public void testPermitsRefilledByHalfWindow() {
+        doReturn(true).when(responseObserver).isReady();
+        flowPermits.onReady();
+
+        for (int i = 0; i < 4; i++) {
+            flowPermits.messagesSent(1);
+        }
+        verify(consumer, never()).flowPermits(4);
+
+        flowPermits.messagesSent(2);
+        verify(consumer, times(1)).flowPermits(6);
+        verify(responseObserver, times(1)).request(6);
+    }
+
+    @Test
+    public void testPermitsRefilledWhenStreamBecomesReady() {
+        doReturn(true).when(responseObserver).isReady();
+        flowPermits.onReady();
+
+        doReturn(false).when(responseObserver).isReady();
+        flowPermits.messagesSent(5);
+        flowPermits.messagesSent(3);
+        verify(consumer, never()).flowPermits(5);
+        verify(consumer, never()).flowPermits(8);
+
+        doReturn(true).when(responseObserver).isReady();
+        flowPermits.onReady();
+        verify(consumer, times(1)).flowPermits(8);
+        verify(responseObserver, times(1)).request(8);
+    }
+
+    @Test
+    public void testInboundMessagesNotRequestedTwice() {
+        doReturn(true).when(responseObserver).isReady();
+        flowPermits.onReady();
+
+        flowPermits.messagesSent(4, true);
+        flowPermits.messagesSent(2);
+        verify(consumer, times(1)).flowPermits(6);
+        verify(responseObserver, times(1)).request(2);
+    }
+}
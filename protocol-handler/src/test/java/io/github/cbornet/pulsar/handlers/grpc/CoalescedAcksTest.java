@@ -0,0 +1,230 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.AckRange;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
+import org.apache.pulsar.broker.service.Consumer;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+/**
+ * Tests for {@link CoalescedAcks}.
+ */
+public class CoalescedAcksTest {
+
+    private Consumer consumer;
+    private List<Runnable> tasks;
+    private CoalescedAcks coalescedAcks;
+
+    @BeforeMethod
+    public void setup() {
+        consumer = mock(Consumer.class);
+        doReturn(CompletableFuture.completedFuture(null)).when(consumer).messageAcked(any());
+        tasks = new ArrayList<>();
+        coalescedAcks = new CoalescedAcks(tasks::add);
+    }
+
+    @Test
+    public void testAcksCoalescedUntilTaskRuns() {
+        coalescedAcks.add(consumer, newAck(1, 2));
+        coalescedAcks.add(consumer, newAck(1, 3));
+        verify(consumer, never()).messageAcked(any());
+        assertEquals(tasks.size(), 1);
+
+        tasks.get(0).run();
+        List<long[]> ackedIds = captureAckedIds();
+        assertEquals(ackedIds.size(), 2);
+        assertEquals(ackedIds.get(0), new long[] {1, 2});
+        assertEquals(ackedIds.get(1), new long[] {1, 3});
+    }
+
+    @Test
+    public void testAckRangesExpanded() {
+        coalescedAcks.add(consumer, CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addAckRanges(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(10).setLastEntryId(12))
+                .addAckRanges(AckRange.newBuilder().setLedgerId(2).setFirstEntryId(0)
+                        .addEntriesBitset(0b1001)
+                        .addEntriesBitset(1L << 63))
+                .build());
+        coalescedAcks.flush();
+
+        List<long[]> ackedIds = captureAckedIds();
+        assertEquals(ackedIds.size(), 6);
+        assertEquals(ackedIds.get(0), new long[] {1, 10});
+        assertEquals(ackedIds.get(2), new long[] {1, 12});
+        assertEquals(ackedIds.get(3), new long[] {2, 0});
+        assertEquals(ackedIds.get(4), new long[] {2, 3});
+        assertEquals(ackedIds.get(5), new long[] {2, 127});
+    }
+
+    @Test
+    public void testTooBigAckRangeRejected() {
+        CommandAck ack = CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addMessageId(MessageIdData.newBuilder().setLedgerId(1).setEntryId(1))
+                .addAckRanges(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(0)
+                        .setLastEntryId(Commands.MAX_ACK_RANGE_ENTRIES))
+                .build();
+        expectThrows(IllegalArgumentException.class, () -> coalescedAcks.add(consumer, ack));
+
+        tasks.forEach(Runnable::run);
+        verify(consumer, never()).messageAcked(any());
+    }
+
+    @Test
+    public void testTooManyAckRangesEntriesRejected() {
+        CommandAck.Builder ack = CommandAck.newBuilder().setAckType(CommandAck.AckType.Individual);
+        for (int i = 0; i < 10_000; i++) {
+            ack.addAckRanges(newMaxAckRange(i));
+        }
+        expectThrows(IllegalArgumentException.class, () -> coalescedAcks.add(consumer, ack.build()));
+        expectThrows(IllegalArgumentException.class, () -> Commands.convertCommandAck(ack.build(), 1));
+
+        CommandAck twoRanges = CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addAckRanges(newMaxAckRange(1))
+                .addAckRanges(AckRange.newBuilder().setLedgerId(2).setFirstEntryId(0).addEntriesBitset(1))
+                .build();
+        expectThrows(IllegalArgumentException.class, () -> coalescedAcks.add(consumer, twoRanges));
+
+        tasks.forEach(Runnable::run);
+        verify(consumer, never()).messageAcked(any());
+    }
+
+    @Test
+    public void testCoalescedAckRangesEntriesBounded() {
+        for (int i = 0; i < 3; i++) {
+            coalescedAcks.add(consumer, CommandAck.newBuilder()
+                    .setAckType(CommandAck.AckType.Individual)
+                    .addAckRanges(newMaxAckRange(i))
+                    .build());
+        }
+        // The pending acks are flushed before exceeding the max number of entries
+        verify(consumer, times(2)).messageAcked(any());
+        tasks.forEach(Runnable::run);
+
+        ArgumentCaptor<org.apache.pulsar.common.api.proto.CommandAck> captor =
+                ArgumentCaptor.forClass(org.apache.pulsar.common.api.proto.CommandAck.class);
+        verify(consumer, times(3)).messageAcked(captor.capture());
+        for (int i = 0; i < 3; i++) {
+            org.apache.pulsar.common.api.proto.CommandAck ack = captor.getAllValues().get(i);
+            assertEquals(ack.getMessageIdsCount(), Commands.MAX_ACK_RANGES_ENTRIES);
+            assertEquals(ack.getMessageIdAt(0).getLedgerId(), i);
+        }
+    }
+
+    @Test
+    public void testInvalidAckRangesRejected() {
+        // Would wrap around Long.MAX_VALUE
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(Long.MAX_VALUE - 1)
+                .setLastEntryId(Long.MAX_VALUE));
+        // Negative when read as signed, like the unsigned ids above Long.MAX_VALUE
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(-10).setLastEntryId(-5));
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(-10).setLastEntryId(5));
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(-1).addEntriesBitset(1));
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(10).setLastEntryId(5));
+        assertAckRangeRejected(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(0)
+                .addAllEntriesBitset(Collections.nCopies(Commands.MAX_ACK_RANGE_ENTRIES / Long.SIZE + 1, 1L)));
+
+        tasks.forEach(Runnable::run);
+        verify(consumer, never()).messageAcked(any());
+    }
+
+    @Test
+    public void testAckRangeWithoutLastEntryId() {
+        coalescedAcks.add(consumer, CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addAckRanges(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(10))
+                .build());
+        coalescedAcks.flush();
+
+        List<long[]> ackedIds = captureAckedIds();
+        assertEquals(ackedIds.size(), 1);
+        assertEquals(ackedIds.get(0), new long[] {1, 10});
+    }
+
+    @Test
+    public void testCumulativeAckWithRangesRejected() {
+        CommandAck ack = CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Cumulative)
+                .addAckRanges(AckRange.newBuilder().setLedgerId(1).setFirstEntryId(0).setLastEntryId(10))
+                .build();
+        expectThrows(IllegalArgumentException.class, () -> Commands.convertCommandAck(ack, 1));
+    }
+
+    @Test
+    public void testCanCoalesce() {
+        assertTrue(CoalescedAcks.canCoalesce(newAck(1, 2)));
+        assertFalse(CoalescedAcks.canCoalesce(newAck(1, 2).toBuilder()
+                .setAckType(CommandAck.AckType.Cumulative).build()));
+        assertFalse(CoalescedAcks.canCoalesce(newAck(1, 2).toBuilder().setRequestId(3).build()));
+        assertFalse(CoalescedAcks.canCoalesce(newAck(1, 2).toBuilder().setTxnidMostBits(3).build()));
+        assertFalse(CoalescedAcks.canCoalesce(newAck(1, 2).toBuilder().putProperties("key", 3).build()));
+    }
+
+    private void assertAckRangeRejected(AckRange.Builder range) {
+        CommandAck ack = CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addAckRanges(range)
+                .build();
+        expectThrows(IllegalArgumentException.class, () -> coalescedAcks.add(consumer, ack));
+    }
+
+    private static AckRange newMaxAckRange(long ledgerId) {
+        return AckRange.newBuilder()
+                .setLedgerId(ledgerId)
+                .setFirstEntryId(0)
+                .setLastEntryId(Commands.MAX_ACK_RANGE_ENTRIES - 1)
+                .build();
+    }
+
+    private List<long[]> captureAckedIds() {
+        ArgumentCaptor<org.apache.pulsar.common.api.proto.CommandAck> captor =
+                ArgumentCaptor.forClass(org.apache.pulsar.common.api.proto.CommandAck.class);
+        verify(consumer).messageAcked(captor.capture());
+        List<long[]> ids = new ArrayList<>();
+        org.apache.pulsar.common.api.proto.CommandAck ack = captor.getValue();
+        for (int i = 0; i < ack.getMessageIdsCount(); i++) {
+            ids.add(new long[] {ack.getMessageIdAt(i).getLedgerId(), ack.getMessageIdAt(i).getEntryId()});
+        }
+        return ids;
+    }
+
+    private static CommandAck newAck(long ledgerId, long entryId) {
+        return CommandAck.newBuilder()
+                .setAckType(CommandAck.AckType.Individual)
+                .addMessageId(MessageIdData.newBuilder().setLedgerId(ledgerId).setEntryId(entryId))
+                .build();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import com.google.protobuf.ByteString;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageMetadata;
+import io.github.cbornet.pulsar.handlers.grpc.api.MetadataAndPayload;
+import io.grpc.StatusRuntimeException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+
+/**
+ * Tests for {@link CommandSendMarshaller}.
+ */
+public class CommandSendMarshallerTest {
+
+    private static final byte[] PAYLOAD = "test-payload".getBytes(StandardCharsets.UTF_8);
+
+    private final CommandSendMarshaller marshaller = new CommandSendMarshaller();
+
+    @Test
+    public void testParseBinary() {
+        CommandSend send = CommandSend.newBuilder()
+                .setSequenceId(42)
+                .setNumMessages(1)
+                .setBinaryMetadataAndPayload(ByteString.copyFrom(PAYLOAD))
+                .build();
+
+        CommandSendFrame frame = marshaller.parse(marshaller.stream(CommandSendFrame.of(send)));
+
+        assertEquals(frame.getSend(), send);
+        assertEquals(ByteBufUtil.getBytes(frame.getPayload()), PAYLOAD);
+        assertEquals(frame.getPayload().refCnt(), 1);
+        frame.release();
+        assertEquals(frame.getPayload().refCnt(), 0);
+    }
+
+    @Test
+    public void testParseMetadataAndPayload() {
+        CommandSend send = CommandSend.newBuilder()
+                .setSequenceId(42)
+                .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                        .setMetadata(MessageMetadata.newBuilder()
+                                .setProducerName("test-producer")
+                                .setSequenceId(42)
+                                .setPublishTime(1234))
+                        .setPayload(ByteString.copyFrom(PAYLOAD)))
+                .build();
+
+        CommandSendFrame frame = marshaller.parse(marshaller.stream(CommandSendFrame.of(send)));
+
+        assertEquals(frame.getSend(), send);
+        assertEquals(ByteBufUtil.getBytes(frame.getPayload()), PAYLOAD);
+
+        byte[] headers = "headers".getBytes(StandardCharsets.UTF_8);
+        ByteBuf headersAndPayload = frame.prependToPayload(Unpooled.wrappedBuffer(headers));
+        assertEquals(ByteBufUtil.getBytes(headersAndPayload),
+                ("headers" + new String(PAYLOAD, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+
+        assertNull(frame.prependToPayload(Unpooled.wrappedBuffer(new byte[1024])));
+
+        frame.release();
+        assertEquals(headersAndPayload.refCnt(), 1);
+        headersAndPayload.release();
+        assertEquals(headersAndPayload.refCnt(), 0);
+    }
+
+    @Test
+    public void testSendIsInvalidAfterPrependOrRelease() {
+        CommandSend send = CommandSend.newBuilder()
+                .setSequenceId(42)
+                .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                        .setMetadata(MessageMetadata.newBuilder()
+                                .setProducerName("test-producer")
+                                .setSequenceId(42)
+                                .setPublishTime(1234))
+                        .setPayload(ByteString.copyFrom(PAYLOAD)))
+                .build();
+
+        CommandSendFrame frame = marshaller.parse(marshaller.stream(CommandSendFrame.of(send)));
+        ByteBuf headersAndPayload = frame.prependToPayload(Unpooled.wrappedBuffer(new byte[4]));
+        assertThrows(IllegalStateException.class, frame::getSend);
+        frame.release();
+        headersAndPayload.release();
+
+        frame = marshaller.parse(marshaller.stream(CommandSendFrame.of(send)));
+        frame.release();
+        assertThrows(IllegalStateException.class, frame::getSend);
+    }
+
+    @Test
+    public void testCopyOfMetadataIsDetachedFromFrame() throws Exception {
+        CommandSend send = CommandSend.newBuilder()
+                .setSequenceId(42)
+                .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                        .setMetadata(MessageMetadata.newBuilder()
+                                .setProducerName("test-producer")
+                                .setSequenceId(42)
+                                .setPublishTime(1234)
+                                .setSchemaVersion(ByteString.copyFromUtf8("schema-version"))
+                                .setOrderingKey(ByteString.copyFromUtf8("ordering-key")))
+                        .setPayload(ByteString.copyFrom(PAYLOAD)))
+                .build();
+        ByteBuf buffer = Unpooled.directBuffer().writeBytes(send.toByteArray());
+
+        CommandSendFrame frame = CommandSendFrame.parse(buffer);
+        MessageMetadata metadata = frame.getSend().getMetadataAndPayload().getMetadata();
+        MessageMetadata copy = CommandSendFrame.copyOf(metadata);
+
+        // Simulate the reuse of the released buffer
+        buffer.setZero(0, buffer.writerIndex());
+        assertEquals(metadata.getOrderingKey().byteAt(0), 0);
+        assertEquals(copy.getSchemaVersion().toStringUtf8(), "schema-version");
+        assertEquals(copy.getOrderingKey().toStringUtf8(), "ordering-key");
+        assertEquals(copy.getProducerName(), "test-producer");
+        frame.release();
+    }
+
+    @Test
+    public void testParseStreamWithUnknownLength() {
+        CommandSend send = CommandSend.newBuilder()
+                .setSequenceId(42)
+                .setBinaryMetadataAndPayload(ByteString.copyFrom(new byte[100_000]))
+                .build();
+        InputStream stream = new FilterInputStream(new ByteArrayInputStream(send.toByteArray())) {
+        };
+
+        CommandSendFrame frame = marshaller.parse(stream);
+
+        assertEquals(frame.getSend(), send);
+        assertEquals(frame.getPayload().readableBytes(), 100_000);
+        frame.release();
+    }
+
+    @Test
+    public void testParseInvalidMessage() {
+        InputStream stream = new ByteArrayInputStream(new byte[] {(byte) 0xff, (byte) 0xff});
+        assertThrows(StatusRuntimeException.class, () -> marshaller.parse(stream));
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.grpc.Drainable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConsumeOutputMarshaller}.
+ */
+public class ConsumeOutputMarshallerTest {
+
+    private final ConsumeOutputMarshaller marshaller = new ConsumeOutputMarshaller();
+
+    @Test
+    public void testStreamBinaryMessage() throws Exception {
+        ByteBuf data = Unpooled.copiedBuffer("test-data", StandardCharsets.UTF_8);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(3);
+        long[] ackSet = new long[] {7L};
+        ConsumeOutput expected = Commands.newMessage(messageId, 4, data, ackSet, PayloadType.BINARY);
+
+        ConsumeOutputFrame frame = ConsumeOutputFrame.newMessage(PayloadType.BINARY, 1, 2, 3, 4, ackSet, data);
+        assertEquals(data.refCnt(), 2);
+
+        InputStream stream = marshaller.stream(frame);
+        frame.release();
+        assertEquals(data.refCnt(), 2);
+
+        assertTrue(stream instanceof Drainable);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((Drainable) stream).drainTo(out);
+        stream.close();
+        assertEquals(data.refCnt(), 1);
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void testStreamLargeDirectBinaryMessage() throws Exception {
+        byte[] bytes = new byte[100_000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteBuf data = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(-1);
+        ConsumeOutput expected = Commands.newMessage(messageId, 0, data.duplicate(), null, PayloadType.BINARY);
+
+        ConsumeOutputFrame frame = ConsumeOutputFrame.newMessage(PayloadType.BINARY, 1, 2, -1, 0, null, data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(frame)) {
+            assertEquals(((Drainable) stream).drainTo(out), expected.getSerializedSize());
+            assertEquals(stream.available(), 0);
+        }
+        frame.release();
+        assertEquals(data.refCnt(), 1);
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expected);
+        data.release();
+    }
+
+    @Test
+    public void testParseBinaryMessage() throws Exception {
+        ByteBuf data = Unpooled.copiedBuffer("test-data", StandardCharsets.UTF_8);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(-1);
+        ConsumeOutput expected = Commands.newMessage(messageId, 0, data, null, PayloadType.BINARY);
+
+        ConsumeOutputFrame frame = ConsumeOutputFrame.newMessage(PayloadType.BINARY, 1, 2, -1, 0, null, data);
+        assertEquals(frame.toConsumeOutput(), expected);
+        try (InputStream stream = marshaller.stream(frame)) {
+            assertEquals(marshaller.parse(stream).toConsumeOutput(), expected);
+        }
+
+        frame.release();
+        assertEquals(data.refCnt(), 1);
+    }
+
+    @Test
+    public void testStreamPackedBinaryMessages() throws Exception {
+        ByteBuf data1 = Unpooled.copiedBuffer("test-data-1", StandardCharsets.UTF_8);
+        ByteBuf data2 = Unpooled.copiedBuffer("test-data-2", StandardCharsets.UTF_8);
+        MessageIdData.Builder messageId1 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(-1);
+        MessageIdData.Builder messageId2 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(3).setPartition(-1);
+        long[] ackSet = new long[] {-1L, 5L};
+        ConsumeOutput expected = Commands.newMessages(Arrays.asList(
+                Commands.newCommandMessage(messageId1, 0, data1, null, PayloadType.BINARY),
+                Commands.newCommandMessage(messageId2, 1, data2, ackSet, PayloadType.BINARY)));
+
+        ConsumeOutputFrame.MessagesBuilder builder = new ConsumeOutputFrame.MessagesBuilder();
+        builder.add(PayloadType.BINARY, 1, 2, -1, 0, null, data1);
+        builder.add(PayloadType.BINARY, 1, 3, -1, 1, ackSet, data2);
+        assertEquals(builder.count(), 2);
+        assertEquals(builder.size(), expected.getMessages().getSerializedSize());
+        assertEquals(ConsumeOutputFrame.getPackedMessageSize(PayloadType.BINARY, 1, 2, -1, 0, null, data1)
+                + ConsumeOutputFrame.getPackedMessageSize(PayloadType.BINARY, 1, 3, -1, 1, ackSet, data2),
+                expected.getMessages().getSerializedSize());
+        ConsumeOutputFrame frame = builder.build();
+        assertEquals(builder.count(), 0);
+        assertEquals(data1.refCnt(), 2);
+        assertEquals(data2.refCnt(), 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(frame)) {
+            ((Drainable) stream).drainTo(out);
+        }
+        frame.release();
+        assertEquals(data1.refCnt(), 1);
+        assertEquals(data2.refCnt(), 1);
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void testStreamMetadataAndPayloadMessage() throws Exception {
+        ByteBuf data = newEntryData("test-data", ChecksumType.Crc32c);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(3);
+        long[] ackSet = new long[] {7L};
+        ConsumeOutput expected = Commands.newMessage(messageId, 4, data.duplicate(), ackSet,
+                PayloadType.METADATA_AND_PAYLOAD);
+
+        ConsumeOutputFrame frame = ConsumeOutputFrame.newMessage(PayloadType.METADATA_AND_PAYLOAD, 1, 2, 3, 4, ackSet,
+                data);
+        assertEquals(frame.toConsumeOutput(), expected);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(frame)) {
+            ((Drainable) stream).drainTo(out);
+        }
+        frame.release();
+        assertEquals(data.refCnt(), 1);
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void testStreamPackedMetadataAndPayloadMessages() throws Exception {
+        ByteBuf data1 = newEntryData("test-data-1", ChecksumType.Crc32c);
+        ByteBuf data2 = newEntryData("test-data-2", ChecksumType.None);
+        MessageIdData.Builder messageId1 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(-1);
+        MessageIdData.Builder messageId2 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(3).setPartition(-1);
+        long[] ackSet = new long[] {-1L, 5L};
+        ConsumeOutput expected = Commands.newMessages(Arrays.asList(
+                Commands.newCommandMessage(messageId1, 0, data1.duplicate(), null,
+                        PayloadType.METADATA_AND_PAYLOAD),
+                Commands.newCommandMessage(messageId2, 1, data2.duplicate(), ackSet,
+                        PayloadType.METADATA_AND_PAYLOAD)));
+
+        ConsumeOutputFrame.MessagesBuilder builder = new ConsumeOutputFrame.MessagesBuilder();
+        builder.add(PayloadType.METADATA_AND_PAYLOAD, 1, 2, -1, 0, null, data1);
+        builder.add(PayloadType.METADATA_AND_PAYLOAD, 1, 3, -1, 1, ackSet, data2);
+        assertEquals(builder.size(), expected.getMessages().getSerializedSize());
+        assertEquals(
+                ConsumeOutputFrame.getPackedMessageSize(PayloadType.METADATA_AND_PAYLOAD, 1, 2, -1, 0, null, data1)
+                + ConsumeOutputFrame.getPackedMessageSize(PayloadType.METADATA_AND_PAYLOAD, 1, 3, -1, 1, ackSet,
+                        data2),
+                expected.getMessages().getSerializedSize());
+        ConsumeOutputFrame frame = builder.build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(frame)) {
+            ((Drainable) stream).drainTo(out);
+        }
+        frame.release();
+        assertEquals(data1.refCnt(), 1);
+        assertEquals(data2.refCnt(), 1);
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void testStreamEncodedMessages() throws Exception {
+        ByteBuf data = newEntryData("test-data", ChecksumType.Crc32c);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(3);
+        long[] ackSet = new long[] {7L};
+        ConsumeOutput expected = Commands.newMessage(messageId, 4, data.duplicate(), ackSet, PayloadType.MESSAGES);
+        ConsumeOutput expectedPacked = Commands.newMessages(Arrays.asList(
+                Commands.newCommandMessage(messageId, 4, data.duplicate(), ackSet, PayloadType.MESSAGES),
+                Commands.newCommandMessage(messageId, 0, data.duplicate(), null, PayloadType.MESSAGES)));
+
+        ByteBuf body = Commands.newEncodedMessageBody(data.duplicate(), PayloadType.MESSAGES);
+        ConsumeOutputFrame frame = ConsumeOutputFrame.newEncodedMessage(1, 2, 3, 4, ackSet, body);
+        assertEquals(frame.toConsumeOutput(), expected);
+        frame.release();
+
+        ConsumeOutputFrame.MessagesBuilder builder = new ConsumeOutputFrame.MessagesBuilder();
+        builder.addEncoded(1, 2, 3, 4, ackSet, body);
+        builder.addEncoded(1, 2, 3, 0, null, body);
+        assertEquals(builder.size(), expectedPacked.getMessages().getSerializedSize());
+        assertEquals(ConsumeOutputFrame.getPackedEncodedMessageSize(1, 2, 3, 4, ackSet, body)
+                + ConsumeOutputFrame.getPackedEncodedMessageSize(1, 2, 3, 0, null, body),
+                expectedPacked.getMessages().getSerializedSize());
+        frame = builder.build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(frame)) {
+            ((Drainable) stream).drainTo(out);
+        }
+        frame.release();
+        assertEquals(body.refCnt(), 1);
+        body.release();
+
+        assertEquals(ConsumeOutput.parseFrom(out.toByteArray()), expectedPacked);
+    }
+
+    private static ByteBuf newEntryData(String payload, ChecksumType checksumType) {
+        MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("test-producer")
+                .setSequenceId(42)
+                .setPublishTime(1000);
+        metadata.addProperty().setKey("key").setValue("value");
+        return org.apache.pulsar.common.protocol.Commands.serializeMetadataAndPayload(checksumType, metadata,
+                Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamConsumeOutput() {
+        ConsumeOutput output = Commands.newSuccess(42);
+        ConsumeOutputFrame frame = ConsumeOutputFrame.of(output);
+        assertEquals(marshaller.parse(marshaller.stream(frame)).toConsumeOutput(), output);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.grpc.stub.CallStreamObserver;
+import org.apache.pulsar.broker.service.Consumer;
+import org.apache.pulsar.broker.service.Dispatcher;
+import org.apache.pulsar.broker.service.Subscription;
+import org.apache.pulsar.common.api.proto.CommandSubscribe.SubType;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConsumerCnx}.
+ */
+public class ConsumerCnxTest {
+
+    private CallStreamObserver<ConsumeOutputFrame> responseObserver;
+    private Dispatcher dispatcher;
+    private Consumer consumer;
+    private ConsumerCnx cnx;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        responseObserver = mock(CallStreamObserver.class);
+        dispatcher = mock(Dispatcher.class);
+        Subscription subscription = mock(Subscription.class);
+        doReturn(dispatcher).when(subscription).getDispatcher();
+        consumer = mock(Consumer.class);
+        doReturn(subscription).when(consumer).getSubscription();
+        doReturn(SubType.Shared).when(consumer).subType();
+
+        cnx = new ConsumerCnx(null, null, null, null, responseObserver, PayloadType.BINARY, 0,
+                (numMessages, inboundRequested) -> { });
+        cnx.setConsumer(consumer);
+    }
+
+    @Test
+    public void testIsWritable() {
+        doReturn(true).when(responseObserver).isReady();
+        assertTrue(cnx.isWritable());
+
+        doReturn(false).when(responseObserver).isReady();
+        assertFalse(cnx.isWritable());
+    }
+
+    @Test
+    public void testAlwaysWritableForSingleActiveConsumer() {
+        doReturn(SubType.Exclusive).when(consumer).subType();
+        doReturn(false).when(responseObserver).isReady();
+        assertTrue(cnx.isWritable());
+    }
+
+    @Test
+    public void testDispatcherNotifiedWhenWritable() {
+        doReturn(false).when(responseObserver).isReady();
+        assertFalse(cnx.isWritable());
+
+        doReturn(true).when(responseObserver).isReady();
+        cnx.onReady();
+        cnx.onReady();
+        verify(dispatcher, times(1)).consumerFlow(consumer, 0);
+    }
+
+    @Test
+    public void testDispatcherNotNotifiedIfAlwaysWritable() {
+        doReturn(true).when(responseObserver).isReady();
+        assertTrue(cnx.isWritable());
+
+        cnx.onReady();
+        verify(dispatcher, never()).consumerFlow(consumer, 0);
+    }
+
+    @Test
+    public void testDispatcherNotifiedWhenBytePermitsGiven() {
+        doReturn(true).when(responseObserver).isReady();
+        cnx.addBytePermits(0);
+        assertFalse(cnx.isWritable());
+
+        cnx.addBytePermits(100);
+        assertTrue(cnx.isWritable());
+        verify(dispatcher, times(1)).consumerFlow(consumer, 0);
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.grpc.stub.CallStreamObserver;
+import io.netty.util.concurrent.Future;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.pulsar.broker.service.EntryBatchSizes;
+import org.apache.pulsar.broker.service.RedeliveryTracker;
+import org.apache.pulsar.broker.service.Subscription;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConsumerCommandSender}.
+ */
+public class ConsumerCommandSenderTest {
+
+    private CallStreamObserver<ConsumeOutputFrame> responseObserver;
+    private ConsumerCommandSender commandSender;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        responseObserver = mock(CallStreamObserver.class);
+        commandSender = new ConsumerCommandSender(responseObserver, PayloadType.BINARY, 0,
+                (numMessages, inboundRequested) -> { });
+    }
+
+    @Test
+    public void testWriteFutureCompletesWhenStreamIsReady() {
+        doReturn(true).when(responseObserver).isReady();
+
+        assertTrue(sendMessages().isSuccess());
+    }
+
+    @Test
+    public void testWriteFutureCompletesWhenStreamBecomesReady() {
+        doReturn(false).when(responseObserver).isReady();
+
+        Future<Void> future1 = sendMessages();
+        Future<Void> future2 = sendMessages();
+        assertFalse(future1.isDone());
+        assertSame(future1, future2);
+
+        commandSender.completePendingWrites();
+        assertTrue(future1.isSuccess());
+
+        Future<Void> future3 = sendMessages();
+        assertFalse(future3.isDone());
+    }
+
+    @Test
+    public void testMessagePermitsDeferredUntilBytePermitsGiven() {
+        AtomicInteger sentMessages = new AtomicInteger();
+        commandSender = new ConsumerCommandSender(responseObserver, PayloadType.BINARY, 0,
+                (numMessages, inboundRequested) -> sentMessages.addAndGet(numMessages));
+        doReturn(true).when(responseObserver).isReady();
+        commandSender.addBytePermits(30);
+        assertTrue(commandSender.isWritable());
+
+        assertTrue(sendMessages(EntryImpl.create(1, 1, new byte[20])).isSuccess());
+        assertEquals(sentMessages.get(), 1);
+
+        Future<Void> future = sendMessages(EntryImpl.create(1, 2, new byte[20]));
+        assertFalse(future.isDone());
+        assertFalse(commandSender.isWritable());
+        assertEquals(sentMessages.get(), 1);
+
+        // The permits first cover the bytes sent over the previous permits
+        commandSender.addBytePermits(10);
+        commandSender.writabilityChanged();
+        assertFalse(future.isDone());
+        assertEquals(sentMessages.get(), 1);
+
+        commandSender.addBytePermits(10);
+        commandSender.writabilityChanged();
+        assertTrue(future.isSuccess());
+        assertEquals(sentMessages.get(), 2);
+    }
+
+    @Test
+    public void testInboundMessagesOfDeferredPermitsRequestedOnce() {
+        List<Boolean> callbacks = new ArrayList<>();
+        commandSender = new ConsumerCommandSender(responseObserver, PayloadType.BINARY, 0,
+                (numMessages, inboundRequested) -> {
+                    for (int i = 0; i < numMessages; i++) {
+                        callbacks.add(inboundRequested);
+                    }
+                });
+        doReturn(true).when(responseObserver).isReady();
+        commandSender.addBytePermits(10);
+
+        sendMessages(EntryImpl.create(1, 1, new byte[20]), EntryImpl.create(1, 2, new byte[20]));
+        assertEquals(callbacks, Collections.emptyList());
+        // Requested so that the client can send its flow command
+        verify(responseObserver, times(2)).request(1);
+
+        commandSender.addBytePermits(50);
+        commandSender.writabilityChanged();
+        assertEquals(callbacks, Arrays.asList(true, true));
+        verify(responseObserver, times(2)).request(anyInt());
+    }
+
+    @Test
+    public void testWriteFuturePendingWhileOutboundBytesLimiterIsPaused() {
+        OutboundBytesLimiter limiter = new OutboundBytesLimiter(30);
+        commandSender = new ConsumerCommandSender(responseObserver, PayloadType.BINARY, null, 0, null, null, limiter,
+                (numMessages, inboundRequested) -> { });
+        doReturn(false).when(responseObserver).isReady();
+        sendMessages(EntryImpl.create(1, 1, new byte[20]));
+        assertFalse(limiter.isPaused());
+
+        Future<Void> future = sendMessages(EntryImpl.create(1, 2, new byte[20]));
+        assertTrue(limiter.isPaused());
+        assertEquals(limiter.getQueuedBytes(), 40);
+
+        // The queued bytes are released once the stream is ready again
+        doReturn(true).when(responseObserver).isReady();
+        commandSender.writabilityChanged();
+        assertFalse(limiter.isPaused());
+        assertEquals(limiter.getQueuedBytes(), 0);
+        assertTrue(future.isSuccess());
+    }
+
+    private Future<Void> sendMessages(Entry... entries) {
+        return commandSender.sendMessagesToConsumer(0, "topic", mock(Subscription.class), 0,
+                Arrays.asList(entries), EntryBatchSizes.get(entries.length), null, mock(RedeliveryTracker.class));
+    }
+}
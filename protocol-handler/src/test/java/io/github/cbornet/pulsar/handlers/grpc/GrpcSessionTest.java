@@ -0,0 +1,228 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandFlow;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducer;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe;
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link GrpcSession}.
+ */
+public class GrpcSessionTest {
+
+    @Test
+    public void testProducerPermitsDontDependOnSessionStream() {
+        SessionStream sessionStream = new SessionStream();
+        AtomicReference<CallStreamObserver<?>> producerStream = new AtomicReference<>();
+        AtomicReference<CallStreamObserver<?>> consumerStream = new AtomicReference<>();
+        GrpcSession session = new GrpcSession(sessionStream, new InetSocketAddress(0),
+                (producer, results) -> {
+                    CallStreamObserver<?> stream = (CallStreamObserver<?>) results;
+                    producerStream.set(stream);
+                    // Same as the producer: request sends when the stream is ready
+                    stream.setOnReadyHandler(() -> {
+                        if (stream.isReady()) {
+                            stream.request(10);
+                        }
+                    });
+                    return new NoOpStreamObserver<>();
+                },
+                (subscribe, outputs) -> {
+                    consumerStream.set((CallStreamObserver<?>) outputs);
+                    return new NoOpStreamObserver<>();
+                });
+
+        // A consumer filled the session stream
+        session.onNext(Commands.newSessionSubscribe(1, CommandSubscribe.newBuilder()
+                .setTopic("test-topic")
+                .setSubscription("test-subscription")
+                .setSubType(CommandSubscribe.SubType.Exclusive)
+                .build()));
+        sessionStream.ready = false;
+        assertFalse(consumerStream.get().isReady());
+
+        session.onNext(Commands.newSessionProducer(1, CommandProducer.newBuilder()
+                .setTopic("test-topic")
+                .build()));
+        assertTrue(producerStream.get().isReady());
+        assertEquals(sessionStream.outputs.size(), 1);
+        assertEquals(sessionStream.outputs.get(0), Commands.newSendPermits(1, 10));
+
+        session.onNext(Commands.newCloseProducer(1));
+        producerStream.get().onCompleted();
+        assertFalse(producerStream.get().isReady());
+    }
+
+    @Test
+    public void testSessionInputsRequestedByProducersAndConsumers() {
+        SessionStream sessionStream = new SessionStream();
+        AtomicReference<CallStreamObserver<?>> consumerStream = new AtomicReference<>();
+        List<CommandSend> sends = new ArrayList<>();
+        List<ConsumeInput> consumeInputs = new ArrayList<>();
+        GrpcSession session = new GrpcSession(sessionStream, new InetSocketAddress(0),
+                (producer, results) -> {
+                    CallStreamObserver<?> stream = (CallStreamObserver<?>) results;
+                    stream.setOnReadyHandler(() -> stream.request(2));
+                    return new ListStreamObserver<>(sends);
+                },
+                (subscribe, outputs) -> {
+                    consumerStream.set((CallStreamObserver<?>) outputs);
+                    return new ListStreamObserver<>(consumeInputs);
+                });
+        assertTrue(sessionStream.autoInboundFlowControlDisabled);
+        assertEquals(sessionStream.requested, 1);
+
+        // The producer requests its send permits
+        session.onNext(Commands.newSessionProducer(1, CommandProducer.newBuilder()
+                .setTopic("test-topic")
+                .build()));
+        assertEquals(sessionStream.requested, 4);
+
+        CommandSend send = CommandSend.newBuilder().setSequenceId(1).build();
+        session.onNext(Commands.newSessionSend(1, send));
+        session.onNext(Commands.newSessionSend(1, send));
+        assertEquals(sends.size(), 2);
+        assertEquals(sessionStream.requested, 4);
+
+        // A send without permit is rejected and the next input is requested
+        session.onNext(Commands.newSessionSend(1, send));
+        assertEquals(sends.size(), 2);
+        assertEquals(sessionStream.requested, 5);
+
+        session.onNext(Commands.newSessionSubscribe(1, CommandSubscribe.newBuilder()
+                .setTopic("test-topic")
+                .setSubscription("test-subscription")
+                .setSubType(CommandSubscribe.SubType.Exclusive)
+                .build()));
+        assertEquals(sessionStream.requested, 6);
+
+        // The consumer requests its inputs
+        consumerStream.get().request(1);
+        assertEquals(sessionStream.requested, 7);
+        ConsumeInput flow = ConsumeInput.newBuilder().setFlow(CommandFlow.newBuilder().setMessagePermits(1)).build();
+        session.onNext(Commands.newSessionConsumeInput(1, flow));
+        assertEquals(sessionStream.requested, 7);
+
+        // An input that the consumer didn't request is read one at a time
+        session.onNext(Commands.newSessionConsumeInput(1, flow));
+        assertEquals(consumeInputs.size(), 2);
+        assertEquals(sessionStream.requested, 8);
+    }
+
+    private static class SessionStream extends CallStreamObserver<SessionOutputFrame> {
+
+        private final List<SessionOutput> outputs = new ArrayList<>();
+        private volatile boolean ready = true;
+        private boolean autoInboundFlowControlDisabled = false;
+        private int requested = 0;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            // Nothing to do
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            autoInboundFlowControlDisabled = true;
+        }
+
+        @Override
+        public void request(int count) {
+            requested += count;
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onNext(SessionOutputFrame frame) {
+            outputs.add(frame.toSessionOutput());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onCompleted() {
+            // Nothing to do
+        }
+    }
+
+    private static class ListStreamObserver<T> implements StreamObserver<T> {
+
+        private final List<T> values;
+
+        private ListStreamObserver(List<T> values) {
+            this.values = values;
+        }
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onCompleted() {
+            // Nothing to do
+        }
+    }
+
+    private static class NoOpStreamObserver<T> implements StreamObserver<T> {
+
+        @Override
+        public void onNext(T value) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onCompleted() {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+/**
+ * Tests for {@link MessageBodyCache}.
+ */
+public class MessageBodyCacheTest {
+
+    @Test
+    public void testGetRetainsBody() {
+        MessageBodyCache cache = new MessageBodyCache(100);
+        ByteBuf body = Unpooled.buffer(10).writeZero(10);
+        cache.put(1, 2, PayloadType.MESSAGES, body);
+        body.release();
+        assertEquals(body.refCnt(), 1);
+
+        ByteBuf cached = cache.get(1, 2, PayloadType.MESSAGES);
+        assertNotNull(cached);
+        assertEquals(cached.readableBytes(), 10);
+        assertEquals(body.refCnt(), 2);
+        cached.release();
+
+        assertNull(cache.get(1, 3, PayloadType.MESSAGES));
+        assertNull(cache.get(1, 2, PayloadType.METADATA_AND_PAYLOAD_UNCOMPRESSED));
+
+        cache.clear();
+        assertEquals(body.refCnt(), 0);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedBodyEvicted() {
+        MessageBodyCache cache = new MessageBodyCache(25);
+        ByteBuf body1 = Unpooled.buffer(10).writeZero(10);
+        ByteBuf body2 = Unpooled.buffer(10).writeZero(10);
+        ByteBuf body3 = Unpooled.buffer(10).writeZero(10);
+        cache.put(1, 1, PayloadType.MESSAGES, body1);
+        cache.put(1, 2, PayloadType.MESSAGES, body2);
+        cache.get(1, 1, PayloadType.MESSAGES).release();
+        cache.put(1, 3, PayloadType.MESSAGES, body3);
+
+        assertEquals(cache.count(), 2);
+        assertEquals(cache.size(), 20);
+        assertNull(cache.get(1, 2, PayloadType.MESSAGES));
+        assertEquals(body2.refCnt(), 1);
+        assertEquals(body1.refCnt(), 2);
+        assertEquals(body3.refCnt(), 2);
+    }
+
+    @Test
+    public void testBodyBiggerThanCacheNotAdded() {
+        MessageBodyCache cache = new MessageBodyCache(5);
+        ByteBuf body = Unpooled.buffer(10).writeZero(10);
+        cache.put(1, 1, PayloadType.MESSAGES, body);
+
+        assertEquals(cache.count(), 0);
+        assertEquals(body.refCnt(), 1);
+    }
+
+    @Test
+    public void testSegmentedCache() {
+        MessageBodyCache cache = new MessageBodyCache(400, 4);
+        ByteBuf[] bodies = new ByteBuf[20];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = Unpooled.buffer(10).writeZero(10);
+            cache.put(1, i, PayloadType.MESSAGES, bodies[i]);
+        }
+
+        assertEquals(cache.count(), 20);
+        assertEquals(cache.size(), 200);
+        for (int i = 0; i < bodies.length; i++) {
+            ByteBuf cached = cache.get(1, i, PayloadType.MESSAGES);
+            assertNotNull(cached);
+            cached.release();
+            assertNull(cache.get(1, i, PayloadType.METADATA_AND_PAYLOAD_UNCOMPRESSED));
+        }
+
+        // Each segment is bounded by its share of the cache size
+        ByteBuf big = Unpooled.buffer(150).writeZero(150);
+        cache.put(2, 0, PayloadType.MESSAGES, big);
+        assertEquals(cache.count(), 20);
+        assertEquals(big.refCnt(), 1);
+
+        cache.clear();
+        assertEquals(cache.count(), 0);
+        assertEquals(cache.size(), 0);
+        for (ByteBuf body : bodies) {
+            assertEquals(body.refCnt(), 1);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link OutboundBytesLimiter}.
+ */
+public class OutboundBytesLimiterTest {
+
+    @Test
+    public void testPausedAboveHighWaterMarkAndResumedBelowLowWaterMark() {
+        OutboundBytesLimiter limiter = new OutboundBytesLimiter(100);
+        AtomicInteger resumed = new AtomicInteger();
+        limiter.addResumeListener(resumed::incrementAndGet);
+
+        limiter.queued(100);
+        assertFalse(limiter.isPaused());
+        limiter.queued(20);
+        assertTrue(limiter.isPaused());
+
+        limiter.drained(60);
+        assertTrue(limiter.isPaused());
+        assertEquals(resumed.get(), 0);
+
+        limiter.drained(10);
+        assertFalse(limiter.isPaused());
+        assertEquals(limiter.getQueuedBytes(), 50);
+        assertEquals(resumed.get(), 1);
+
+        limiter.drained(50);
+        assertEquals(resumed.get(), 1);
+    }
+
+    @Test
+    public void testRemovedListenerNotResumed() {
+        OutboundBytesLimiter limiter = new OutboundBytesLimiter(100);
+        AtomicInteger resumed = new AtomicInteger();
+        Runnable listener = resumed::incrementAndGet;
+        limiter.addResumeListener(listener);
+        limiter.removeResumeListener(listener);
+
+        limiter.queued(200);
+        limiter.drained(200);
+        assertFalse(limiter.isPaused());
+        assertEquals(resumed.get(), 0);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import com.google.protobuf.ByteString;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.pulsar.common.api.proto.CompressionType;
+import org.apache.pulsar.common.compression.CompressionCodecProvider;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link PayloadCompressor}.
+ */
+public class PayloadCompressorTest {
+
+    private static final String MESSAGE = "my-message my-message my-message my-message my-message my-message";
+
+    @DataProvider(name = "compressionTypes")
+    public Object[][] compressionTypes() {
+        return new Object[][] {
+                {CompressionType.LZ4}, {CompressionType.ZLIB}, {CompressionType.ZSTD}, {CompressionType.SNAPPY}
+        };
+    }
+
+    @Test(dataProvider = "compressionTypes")
+    public void testEncodeReadOnlyPayload(CompressionType compressionType) throws IOException {
+        ByteString payload = ByteString.copyFrom(MESSAGE, StandardCharsets.UTF_8);
+        ByteBuf readOnlyPayload = Unpooled.wrappedBuffer(payload.asReadOnlyByteBuffer());
+        assertFalse(PayloadCompressor.isSupportedByCodecs(readOnlyPayload));
+
+        ByteBuf compressed = PayloadCompressor.encode(compressionType, readOnlyPayload);
+        ByteBuf decompressed = CompressionCodecProvider.getCompressionCodec(compressionType)
+                .decode(compressed, payload.size());
+        try {
+            assertEquals(decompressed.toString(StandardCharsets.UTF_8), MESSAGE);
+            assertEquals(readOnlyPayload.readableBytes(), payload.size());
+        } finally {
+            compressed.release();
+            decompressed.release();
+        }
+    }
+
+    @Test
+    public void testDirectAndHeapPayloadsSupportedByCodecs() {
+        ByteBuf direct = Unpooled.directBuffer();
+        try {
+            assertTrue(PayloadCompressor.isSupportedByCodecs(direct));
+            assertTrue(PayloadCompressor.isSupportedByCodecs(Unpooled.wrappedBuffer(new byte[1])));
+        } finally {
+            direct.release();
+        }
+    }
+}
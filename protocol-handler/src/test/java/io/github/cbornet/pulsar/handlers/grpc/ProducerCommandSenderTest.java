@@ -0,0 +1,133 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
+import io.github.cbornet.pulsar.handlers.grpc.api.ServerError;
+import io.grpc.stub.StreamObserver;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link ProducerCommandSender}.
+ */
+public class ProducerCommandSenderTest {
+
+    private StreamObserver<SendResult> responseObserver;
+    private List<Runnable> tasks;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        responseObserver = mock(StreamObserver.class);
+        tasks = new ArrayList<>();
+    }
+
+    @Test
+    public void testSendReceiptsNotCoalescedByDefault() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 0);
+        commandSender.sendSendReceiptResponse(0, 1, 0, 2, 3);
+
+        verify(responseObserver).onNext(Commands.newSendReceipt(1, 0, 2, 3));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testSendReceiptsCoalescedUntilTaskRuns() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 10);
+        commandSender.sendSendReceiptResponse(0, 1, 0, 2, 3);
+        commandSender.sendSendReceiptResponse(0, 2, 0, 2, 4);
+        verify(responseObserver, never()).onNext(any());
+        assertEquals(tasks.size(), 1);
+
+        tasks.get(0).run();
+        verify(responseObserver).onNext(Commands.newSendReceipts(Arrays.asList(
+                Commands.newCommandSendReceipt(1, 0, 2, 3),
+                Commands.newCommandSendReceipt(2, 0, 2, 4))));
+    }
+
+    @Test
+    public void testSingleSendReceiptNotWrapped() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 10);
+        commandSender.sendSendReceiptResponse(0, 1, 0, 2, 3);
+        tasks.get(0).run();
+
+        verify(responseObserver).onNext(Commands.newSendReceipt(1, 0, 2, 3));
+    }
+
+    @Test
+    public void testSendReceiptsFlushedWhenMaxReached() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 2);
+        for (int i = 0; i < 5; i++) {
+            commandSender.sendSendReceiptResponse(0, i, 0, 2, i);
+        }
+        tasks.forEach(Runnable::run);
+
+        ArgumentCaptor<SendResult> results = ArgumentCaptor.forClass(SendResult.class);
+        verify(responseObserver, times(3)).onNext(results.capture());
+        assertEquals(results.getAllValues().get(0).getSendReceipts().getReceiptsCount(), 2);
+        assertEquals(results.getAllValues().get(1).getSendReceipts().getReceiptsCount(), 2);
+        assertEquals(results.getAllValues().get(2).getSendReceipt().getSequenceId(), 4);
+    }
+
+    @Test
+    public void testSendReceiptsFlushedBeforeError() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 10);
+        commandSender.sendSendReceiptResponse(0, 1, 0, 2, 3);
+        commandSender.sendSendError(0, 2, org.apache.pulsar.common.api.proto.ServerError.PersistenceError, "error");
+
+        ArgumentCaptor<SendResult> results = ArgumentCaptor.forClass(SendResult.class);
+        verify(responseObserver, times(2)).onNext(results.capture());
+        assertEquals(results.getAllValues().get(0), Commands.newSendReceipt(1, 0, 2, 3));
+        assertEquals(results.getAllValues().get(1).getSendError().getError(), ServerError.PersistenceError);
+    }
+
+    @Test
+    public void testBatchReceiptSentForEachMessage() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 0);
+        commandSender.addBatch(1, new long[] {1, 2, 3});
+        commandSender.sendSendReceiptResponse(0, 1, 3, 2, 3);
+        commandSender.sendSendReceiptResponse(0, 4, 0, 2, 4);
+
+        verify(responseObserver).onNext(Commands.newSendReceipt(Commands.newCommandSendReceipt(1, 1, 2, 3, 0, 3)));
+        verify(responseObserver).onNext(Commands.newSendReceipt(Commands.newCommandSendReceipt(2, 2, 2, 3, 1, 3)));
+        verify(responseObserver).onNext(Commands.newSendReceipt(Commands.newCommandSendReceipt(3, 3, 2, 3, 2, 3)));
+        verify(responseObserver).onNext(Commands.newSendReceipt(4, 0, 2, 4));
+    }
+
+    @Test
+    public void testBatchErrorSentForEachMessage() {
+        ProducerCommandSender commandSender = new ProducerCommandSender(responseObserver, tasks::add, 0);
+        commandSender.addBatch(1, new long[] {1, 2});
+        commandSender.sendSendError(0, 1, org.apache.pulsar.common.api.proto.ServerError.PersistenceError, "error");
+
+        ArgumentCaptor<SendResult> results = ArgumentCaptor.forClass(SendResult.class);
+        verify(responseObserver, times(2)).onNext(results.capture());
+        assertEquals(results.getAllValues().get(0).getSendError().getSequenceId(), 1);
+        assertEquals(results.getAllValues().get(1).getSendError().getSequenceId(), 2);
+    }
+}
@@ -15,7 +15,10 @@ package io.github.cbornet.pulsar.handlers.grpc;
 
 import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
+import io.github.cbornet.pulsar.handlers.grpc.api.AckRange;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandAck.AckType;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandFlow;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetLastMessageIdResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetOrCreateSchema;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandGetOrCreateSchemaResponse;
@@ -25,14 +28,17 @@ import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopic;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopicResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandLookupTopicResponse.LookupType;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandMessage;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandNegativeAck;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandPartitionedTopicMetadata;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandPartitionedTopicMetadataResponse;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandProducer;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSend;
+import io.github.cbornet.pulsar.handlers.grpc.api.CommandSendReceipt;
 import io.github.cbornet.pulsar.handlers.grpc.api.CommandSubscribe;
 import io.github.cbornet.pulsar.handlers.grpc.api.CompressionType;
 import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeInput;
 import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.KeyValue;
 import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
 import io.github.cbornet.pulsar.handlers.grpc.api.MessageMetadata;
 import io.github.cbornet.pulsar.handlers.grpc.api.Messages;
@@ -41,6 +47,8 @@ import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
 import io.github.cbornet.pulsar.handlers.grpc.api.PulsarGrpc;
 import io.github.cbornet.pulsar.handlers.grpc.api.Schema;
 import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
 import io.github.cbornet.pulsar.handlers.grpc.api.SingleMessage;
 import io.grpc.ManagedChannel;
 import io.grpc.netty.NegotiationType;
@@ -76,6 +84,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -90,6 +99,9 @@ import java.util.stream.Collectors;
 import static org.apache.pulsar.common.protocol.Commands.parseMessageMetadata;
 import static org.mockito.Mockito.doReturn;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -98,6 +110,8 @@ import static org.testng.Assert.assertTrue;
 public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
 
     private static final Logger log = LoggerFactory.getLogger(ProducerConsumerCompatibilityTest.class);
+    private static final String TLS_SERVER_CERT_FILE_PATH = "./src/test/resources/certificate/server.crt";
+    private static final String TLS_SERVER_KEY_FILE_PATH = "./src/test/resources/certificate/server.key";
 
     private GrpcService grpcService;
     private PulsarGrpc.PulsarStub stub;
@@ -116,6 +130,11 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         grpcService = new GrpcService();
 
         conf.getProperties().setProperty("grpcServicePort", String.valueOf(port));
+        // The TLS server doesn't use a direct executor so the calls are handled off the event loops
+        conf.getProperties().setProperty("grpcServicePortTls", String.valueOf(PortManager.nextFreePort()));
+        conf.setTlsCertificateFilePath(TLS_SERVER_CERT_FILE_PATH);
+        conf.setTlsKeyFilePath(TLS_SERVER_KEY_FILE_PATH);
+        conf.setTlsAllowInsecureConnection(true);
         grpcService.initialize(conf);
         grpcService.start(pulsar.getBrokerService());
 
@@ -191,6 +210,172 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         log.info("-- Exiting {} test --", methodName);
     }
 
+    @Test
+    public void testPulsarProducerAndGrpcPackedBinaryConsumer() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        ProducerBuilder<byte[]> producerBuilder = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1");
+
+        Producer<byte[]> producer = producerBuilder.create();
+        for (int i = 0; i < 10; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Exclusive, 0,
+                "test", 0, PayloadType.BINARY)
+                .toBuilder()
+                .setMaxPackedMessagesSize(1024 * 1024)
+                .build();
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        // Send flow permits
+        consumeInput.onNext(Commands.newFlow(100));
+
+        List<CommandMessage> messages = new ArrayList<>();
+        while (messages.size() < 10) {
+            ConsumeOutput output = consumeOutput.takeOneMessage();
+            assertTrue(output.hasMessages());
+            messages.addAll(output.getMessages().getMessagesList());
+        }
+        assertEquals(messages.size(), 10);
+
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 10; i++) {
+            ByteBuf headersAndPayload =
+                    Unpooled.wrappedBuffer(messages.get(i).getBinaryMetadataAndPayload().toByteArray());
+            parseMessageMetadata(headersAndPayload);
+            ByteBuf payload = Unpooled.copiedBuffer(headersAndPayload);
+            String receivedMessage = new String(payload.array());
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumeInput.onNext(Commands.newAck(messages.get(9).getMessageId(), AckType.Cumulative));
+        Thread.sleep(100);
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testPulsarProducerAndGrpcConsumerWithFlowPermitsWindow() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        ProducerBuilder<byte[]> producerBuilder = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1");
+
+        Producer<byte[]> producer = producerBuilder.create();
+        for (int i = 0; i < 100; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Exclusive, 0,
+                "test", 0, PayloadType.BINARY)
+                .toBuilder()
+                .setFlowPermitsWindow(10)
+                .build();
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        Set<String> messageSet = Sets.newHashSet();
+        CommandMessage message = null;
+        for (int i = 0; i < 100; i++) {
+            ConsumeOutput output = consumeOutput.takeOneMessage();
+            assertTrue(output.hasMessage());
+            message = output.getMessage();
+            ByteBuf headersAndPayload =
+                    Unpooled.wrappedBuffer(message.getBinaryMetadataAndPayload().toByteArray());
+            parseMessageMetadata(headersAndPayload);
+            ByteBuf payload = Unpooled.copiedBuffer(headersAndPayload);
+            String receivedMessage = new String(payload.array());
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumeInput.onNext(Commands.newAck(message.getMessageId(), AckType.Cumulative));
+        Thread.sleep(100);
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testPulsarProducerAndGrpcConsumerWithBytePermits() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Exclusive, 0, "test", 0);
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        // Only allow the first message
+        consumeInput.onNext(ConsumeInput.newBuilder()
+                .setFlow(CommandFlow.newBuilder().setMessagePermits(0).setBytePermits(1))
+                .build());
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        for (int i = 0; i < 3; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        Set<String> messageSet = Sets.newHashSet();
+        CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+        testMessageOrderAndDuplicates(messageSet, getFirstPayloadInBatch(message), "my-message-0");
+        assertNull(consumeOutput.pollOneMessage(500, TimeUnit.MILLISECONDS));
+
+        consumeInput.onNext(ConsumeInput.newBuilder()
+                .setFlow(CommandFlow.newBuilder().setMessagePermits(0).setBytePermits(1024 * 1024))
+                .build());
+        for (int i = 1; i < 3; i++) {
+            message = consumeOutput.takeOneMessage().getMessage();
+            testMessageOrderAndDuplicates(messageSet, getFirstPayloadInBatch(message), "my-message-" + i);
+        }
+
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        producer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
     @Test
     public void testPulsarProducerAndGrpcMetadataAndPayloadConsumer() throws Exception {
         log.info("-- Starting {} test --", methodName);
@@ -382,6 +567,132 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         log.info("-- Exiting {} test --", methodName);
     }
 
+    @Test
+    public void testBatchedPulsarProducerAndGrpcBatchMessagesConsumersWithMessageBodyCache() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Restart the gRPC service with a message body cache
+        channel.shutdown();
+        channel.awaitTermination(30, TimeUnit.SECONDS);
+        grpcService.close();
+        grpcService = new GrpcService();
+        conf.getProperties().setProperty("grpcServiceMessageBodyCacheSizeMB", "1");
+        try {
+            grpcService.initialize(conf);
+            grpcService.start(pulsar.getBrokerService());
+        } finally {
+            conf.getProperties().remove("grpcServiceMessageBodyCacheSizeMB");
+        }
+        channel = NettyChannelBuilder
+                .forAddress("localhost", grpcService.getListenPort().orElse(-1))
+                .usePlaintext()
+                .negotiationType(NegotiationType.PLAINTEXT)
+                .build();
+        stub = PulsarGrpc.newStub(channel);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe twice so that the second subscription gets the entries from the cache
+        List<TestStreamObserver<ConsumeOutput>> consumeOutputs = new ArrayList<>();
+        List<StreamObserver<ConsumeInput>> consumeInputs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                    "my-subscriber-name-" + i, CommandSubscribe.SubType.Exclusive, 0,
+                    "test", 0, PayloadType.MESSAGES);
+            PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+            TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+            consumeInputs.add(consumerStub.consume(consumeOutput));
+            consumeOutputs.add(consumeOutput);
+            assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+        }
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(true)
+                .compressionType(org.apache.pulsar.client.api.CompressionType.LZ4)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        for (int i = 0; i < 10; i++) {
+            String message = "my-message-" + i;
+            producer.sendAsync(message.getBytes());
+        }
+        producer.flush();
+
+        for (int i = 0; i < 2; i++) {
+            CommandMessage message = null;
+            Set<String> messageSet = Sets.newHashSet();
+            List<String> receivedMessages = new ArrayList<>();
+            while (receivedMessages.size() != 10) {
+                message = consumeOutputs.get(i).takeOneMessage().getMessage();
+                receivedMessages.addAll(getBatchPayloads(message));
+            }
+            for (int j = 0; j < 10; j++) {
+                testMessageOrderAndDuplicates(messageSet, receivedMessages.get(j), "my-message-" + j);
+            }
+            consumeInputs.get(i).onNext(Commands.newAck(message.getMessageId(), AckType.Cumulative));
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < 2; i++) {
+            consumeInputs.get(i).onCompleted();
+            consumeOutputs.get(i).waitForCompletion();
+        }
+        producer.close();
+
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testPulsarProducerAndGrpcAutoPayloadConsumer() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Exclusive, 0,
+                "test", 0, PayloadType.AUTO)
+                .toBuilder()
+                .setAutoPayloadMaxDecodedSize(1000)
+                .build();
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        producer.send("my-message-0".getBytes());
+        byte[] bigMessage = new byte[2000];
+        producer.send(bigMessage);
+
+        // The small message is decoded by the broker
+        CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+        assertEquals(getFirstPayloadInBatch(message), "my-message-0");
+
+        // The big message is sent as is
+        message = consumeOutput.takeOneMessage().getMessage();
+        assertTrue(message.hasBinaryMetadataAndPayload());
+        ByteBuf headersAndPayload =
+                Unpooled.wrappedBuffer(message.getBinaryMetadataAndPayload().toByteArray());
+        parseMessageMetadata(headersAndPayload);
+        assertEquals(headersAndPayload.readableBytes(), bigMessage.length);
+
+        consumeInput.onNext(Commands.newAck(message.getMessageId(), AckType.Cumulative));
+        Thread.sleep(100);
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        producer.close();
+
+        log.info("-- Exiting {} test --", methodName);
+    }
+
     @Test
     public void testEncryptedPulsarProducerAndGrpcBatchMessagesConsumer() throws Exception {
         log.info("-- Starting {} test --", methodName);
@@ -456,25 +767,382 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
             String expectedMessage = "my-message-" + i;
             testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
         }
-        commandSend.onCompleted();
-        sendResult.waitForCompletion();
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testGrpcProducerBinaryPayloadAndPulsarConsumer() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap());
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        for (int i = 0; i < 10; i++) {
+            String message = "my-message-" + i;
+            org.apache.pulsar.common.api.proto.MessageMetadata messageMetadata =
+                new org.apache.pulsar.common.api.proto.MessageMetadata()
+                    .setPublishTime(System.currentTimeMillis())
+                    .setProducerName("prod-name")
+                    .setSequenceId(0);
+            ByteBuf data = Unpooled.wrappedBuffer(message.getBytes());
+            commandSend.onNext(Commands.newSend(i, 1, messageMetadata, data));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sendResult.takeOneMessage().hasSendReceipt());
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 10; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            String receivedMessage = new String(msg.getData());
+            log.debug("Received message: [{}]", receivedMessage);
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testGrpcProducerSinglePayloadAndPulsarConsumer() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap());
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        for (int i = 0; i < 10; i++) {
+            CommandSend.Builder builder = CommandSend.newBuilder()
+                    .setSequenceId(i)
+                    .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                            .setMetadata(MessageMetadata.newBuilder()
+                                    .setPublishTime(System.currentTimeMillis())
+                                    .setProducerName("prod-name")
+                                    .setSequenceId(i))
+                            .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
+            commandSend.onNext(builder.build());
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sendResult.takeOneMessage().hasSendReceipt());
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 10; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            String receivedMessage = new String(msg.getData());
+            log.debug("Received message: [{}]", receivedMessage);
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testGrpcProducerWithCoalescedSendReceipts() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap())
+                .toBuilder()
+                .setMaxCoalescedSendReceipts(10)
+                .build();
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        for (int i = 0; i < 100; i++) {
+            CommandSend.Builder builder = CommandSend.newBuilder()
+                    .setSequenceId(i)
+                    .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                            .setMetadata(MessageMetadata.newBuilder()
+                                    .setPublishTime(System.currentTimeMillis())
+                                    .setProducerName("prod-name")
+                                    .setSequenceId(i))
+                            .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
+            commandSend.onNext(builder.build());
+        }
+
+        List<CommandSendReceipt> receipts = new ArrayList<>();
+        while (receipts.size() < 100) {
+            SendResult result = sendResult.takeOneMessage();
+            if (result.hasSendReceipts()) {
+                assertTrue(result.getSendReceipts().getReceiptsCount() <= 10);
+                receipts.addAll(result.getSendReceipts().getReceiptsList());
+            } else {
+                assertTrue(result.hasSendReceipt());
+                receipts.add(result.getSendReceipt());
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(receipts.get(i).getSequenceId(), i);
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            String receivedMessage = new String(msg.getData());
+            log.debug("Received message: [{}]", receivedMessage);
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testGrpcProducerWithSendWindow() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+        produceWithSendWindow(stub);
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testGrpcProducerWithSendWindowOverTls() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+        ManagedChannel tlsChannel = NettyChannelBuilder
+                .forAddress("localhost", grpcService.getListenPortTLS().orElse(-1))
+                .sslContext(SecurityUtility.createNettySslContextForClient(true, null))
+                .build();
+        try {
+            produceWithSendWindow(PulsarGrpc.newStub(tlsChannel));
+        } finally {
+            tlsChannel.shutdown();
+            tlsChannel.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    private void produceWithSendWindow(PulsarGrpc.PulsarStub stub) throws Exception {
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap())
+                .toBuilder()
+                .setSendWindow(20)
+                .build();
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        for (int i = 0; i < 100; i++) {
+            CommandSend.Builder builder = CommandSend.newBuilder()
+                    .setSequenceId(i)
+                    .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                            .setMetadata(MessageMetadata.newBuilder()
+                                    .setPublishTime(System.currentTimeMillis())
+                                    .setProducerName("prod-name")
+                                    .setSequenceId(i))
+                            .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
+            commandSend.onNext(builder.build());
+        }
+
+        for (int i = 0; i < 100; i++) {
+            SendResult result = sendResult.takeOneMessage();
+            assertTrue(result.hasSendReceipt());
+            assertEquals(result.getSendReceipt().getSequenceId(), i);
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            String receivedMessage = new String(msg.getData());
+            log.debug("Received message: [{}]", receivedMessage);
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+    }
+
+    @Test
+    public void testGrpcSession() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic2", false));
+
+        TestStreamObserver<SessionOutput> sessionOutput = TestStreamObserver.create();
+        StreamObserver<SessionInput> sessionInput = stub.session(sessionOutput);
+
+        // Create a consumer and a producer on 2 topics
+        for (long id = 1; id <= 2; id++) {
+            CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic" + id,
+                    "my-subscriber-name", CommandSubscribe.SubType.Exclusive, 0,
+                    "test", 0, PayloadType.METADATA_AND_PAYLOAD);
+            sessionInput.onNext(Commands.newSessionSubscribe(id, subscribe));
+            CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic" + id,
+                    "test", Collections.emptyMap())
+                    .toBuilder()
+                    .setSendWindow(10)
+                    .build();
+            sessionInput.onNext(Commands.newSessionProducer(id, producer));
+        }
+
+        int subscribed = 0;
+        int created = 0;
+        Map<Long, Integer> sendPermits = new HashMap<>();
+        while (subscribed < 2 || created < 2 || sendPermits.size() < 2) {
+            SessionOutput output = sessionOutput.takeOneMessage();
+            if (output.hasConsumeOutput()) {
+                assertTrue(output.getConsumeOutput().getOutput().hasSubscribeSuccess());
+                subscribed++;
+            } else if (output.hasSendResult()) {
+                assertTrue(output.getSendResult().getResult().hasProducerSuccess());
+                created++;
+            } else {
+                assertTrue(output.hasSendPermits(), output.toString());
+                sendPermits.merge(output.getSendPermits().getProducerId(), output.getSendPermits().getPermits(),
+                        Integer::sum);
+            }
+        }
+        assertEquals(sendPermits.get(1L).intValue(), 10);
+        assertEquals(sendPermits.get(2L).intValue(), 10);
+
+        for (int i = 0; i < 10; i++) {
+            for (long id = 1; id <= 2; id++) {
+                CommandSend send = CommandSend.newBuilder()
+                        .setSequenceId(i)
+                        .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                                .setMetadata(MessageMetadata.newBuilder()
+                                        .setPublishTime(System.currentTimeMillis())
+                                        .setProducerName("prod-name")
+                                        .setSequenceId(i))
+                                .setPayload(ByteString.copyFromUtf8("my-message-" + id + "-" + i)))
+                        .build();
+                sessionInput.onNext(Commands.newSessionSend(id, send));
+            }
+        }
+
+        // The results of the producers and consumers are received on the session stream with their ids
+        Map<Long, List<Long>> receipts = new HashMap<>();
+        Map<Long, List<String>> messages = new HashMap<>();
+        Map<Long, MessageIdData> lastMessageIds = new HashMap<>();
+        int received = 0;
+        while (received < 40) {
+            SessionOutput output = sessionOutput.takeOneMessage();
+            if (output.hasSendResult()) {
+                assertTrue(output.getSendResult().getResult().hasSendReceipt());
+                receipts.computeIfAbsent(output.getSendResult().getProducerId(), id -> new ArrayList<>())
+                        .add(output.getSendResult().getResult().getSendReceipt().getSequenceId());
+                received++;
+            } else if (output.hasConsumeOutput()) {
+                CommandMessage message = output.getConsumeOutput().getOutput().getMessage();
+                messages.computeIfAbsent(output.getConsumeOutput().getConsumerId(), id -> new ArrayList<>())
+                        .add(getPayload(message));
+                lastMessageIds.put(output.getConsumeOutput().getConsumerId(), message.getMessageId());
+                received++;
+            } else {
+                assertTrue(output.hasSendPermits());
+            }
+        }
 
-        // Acknowledge the consumption of all messages at once
-        consumer.acknowledgeCumulative(msg);
-        consumer.close();
+        for (long id = 1; id <= 2; id++) {
+            Set<String> messageSet = Sets.newHashSet();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(receipts.get(id).get(i).longValue(), i);
+                testMessageOrderAndDuplicates(messageSet, messages.get(id).get(i), "my-message-" + id + "-" + i);
+            }
+            sessionInput.onNext(Commands.newSessionConsumeInput(id,
+                    Commands.newAck(lastMessageIds.get(id), AckType.Cumulative)));
+        }
 
+        sessionInput.onNext(Commands.newCloseProducer(1));
+        SessionOutput output;
+        do {
+            output = sessionOutput.takeOneMessage();
+        } while (output.hasSendPermits());
+        assertTrue(output.hasProducerClosed());
+        assertEquals(output.getProducerClosed().getProducerId(), 1);
+        assertFalse(output.getProducerClosed().hasError());
+
+        // The other producer and the consumers are closed with the session
+        sessionInput.onCompleted();
+        sessionOutput.waitForCompletion();
+        int closed = 0;
+        while ((output = sessionOutput.pollOneMessage(0, TimeUnit.SECONDS)) != null) {
+            if (output.hasProducerClosed() || output.hasConsumerClosed()) {
+                closed++;
+            }
+        }
+        assertEquals(closed, 3);
         log.info("-- Exiting {} test --", methodName);
     }
 
     @Test
-    public void testGrpcProducerBinaryPayloadAndPulsarConsumer() throws Exception {
+    public void testGrpcProducerWithServerSideBatching() throws Exception {
         log.info("-- Starting {} test --", methodName);
 
         Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
                 .subscriptionName("my-subscriber-name").subscribe();
 
         CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
-                "test", Collections.emptyMap());
+                "test", Collections.emptyMap())
+                .toBuilder()
+                .setBatchingMaxMessages(10)
+                .setBatchingMaxPublishDelayMicros(100_000)
+                .build();
 
         PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
         TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
@@ -482,19 +1150,24 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
 
         assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
 
-        for (int i = 0; i < 10; i++) {
-            String message = "my-message-" + i;
-            org.apache.pulsar.common.api.proto.MessageMetadata messageMetadata =
-                new org.apache.pulsar.common.api.proto.MessageMetadata()
-                    .setPublishTime(System.currentTimeMillis())
-                    .setProducerName("prod-name")
-                    .setSequenceId(0);
-            ByteBuf data = Unpooled.wrappedBuffer(message.getBytes());
-            commandSend.onNext(Commands.newSend(i, 1, messageMetadata, data));
+        for (int i = 0; i < 25; i++) {
+            CommandSend.Builder builder = CommandSend.newBuilder()
+                    .setSequenceId(i)
+                    .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                            .setMetadata(MessageMetadata.newBuilder()
+                                    .setPublishTime(System.currentTimeMillis())
+                                    .setProducerName("prod-name")
+                                    .setSequenceId(i)
+                                    .addProperties(KeyValue.newBuilder().setKey("index").setValue("" + i)))
+                            .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
+            commandSend.onNext(builder.build());
         }
 
-        for (int i = 0; i < 10; i++) {
-            assertTrue(sendResult.takeOneMessage().hasSendReceipt());
+        for (int i = 0; i < 25; i++) {
+            CommandSendReceipt receipt = sendResult.takeOneMessage().getSendReceipt();
+            assertEquals(receipt.getSequenceId(), i);
+            assertEquals(receipt.getMessageId().getBatchIndex(), i % 10);
+            assertEquals(receipt.getMessageId().getBatchSize(), i < 20 ? 10 : 5);
         }
 
         commandSend.onCompleted();
@@ -502,12 +1175,14 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
 
         Message<byte[]> msg = null;
         Set<String> messageSet = Sets.newHashSet();
-        for (int i = 0; i < 10; i++) {
+        for (int i = 0; i < 25; i++) {
             msg = consumer.receive(5, TimeUnit.SECONDS);
             String receivedMessage = new String(msg.getData());
             log.debug("Received message: [{}]", receivedMessage);
             String expectedMessage = "my-message-" + i;
             testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+            assertEquals(msg.getProperty("index"), "" + i);
+            assertEquals(msg.getSequenceId(), i);
         }
         // Acknowledge the consumption of all messages at once
         consumer.acknowledgeCumulative(msg);
@@ -516,14 +1191,18 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
     }
 
     @Test
-    public void testGrpcProducerSinglePayloadAndPulsarConsumer() throws Exception {
+    public void testGrpcProducerWithServerSideBatchingByKeyAndSchemaVersion() throws Exception {
         log.info("-- Starting {} test --", methodName);
 
         Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
                 .subscriptionName("my-subscriber-name").subscribe();
 
         CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
-                "test", Collections.emptyMap());
+                "test", Collections.emptyMap())
+                .toBuilder()
+                .setBatchingMaxMessages(10)
+                .setBatchingMaxPublishDelayMicros(100_000)
+                .build();
 
         PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
         TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
@@ -531,20 +1210,27 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
 
         assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
 
-        for (int i = 0; i < 10; i++) {
+        // The batches are split when the ordering key changes
+        for (int i = 0; i < 25; i++) {
+            int group = i / 5;
             CommandSend.Builder builder = CommandSend.newBuilder()
                     .setSequenceId(i)
                     .setMetadataAndPayload(MetadataAndPayload.newBuilder()
                             .setMetadata(MessageMetadata.newBuilder()
                                     .setPublishTime(System.currentTimeMillis())
                                     .setProducerName("prod-name")
-                                    .setSequenceId(i))
+                                    .setSequenceId(i)
+                                    .setSchemaVersion(ByteString.copyFrom(new LongSchemaVersion(group).bytes()))
+                                    .setOrderingKey(ByteString.copyFromUtf8("key-" + group)))
                             .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
             commandSend.onNext(builder.build());
         }
 
-        for (int i = 0; i < 10; i++) {
-            assertTrue(sendResult.takeOneMessage().hasSendReceipt());
+        for (int i = 0; i < 25; i++) {
+            CommandSendReceipt receipt = sendResult.takeOneMessage().getSendReceipt();
+            assertEquals(receipt.getSequenceId(), i);
+            assertEquals(receipt.getMessageId().getBatchIndex(), i % 5);
+            assertEquals(receipt.getMessageId().getBatchSize(), 5);
         }
 
         commandSend.onCompleted();
@@ -552,12 +1238,14 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
 
         Message<byte[]> msg = null;
         Set<String> messageSet = Sets.newHashSet();
-        for (int i = 0; i < 10; i++) {
+        for (int i = 0; i < 25; i++) {
             msg = consumer.receive(5, TimeUnit.SECONDS);
             String receivedMessage = new String(msg.getData());
             log.debug("Received message: [{}]", receivedMessage);
             String expectedMessage = "my-message-" + i;
             testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+            assertEquals(msg.getSchemaVersion(), new LongSchemaVersion(i / 5).bytes());
+            assertEquals(new String(msg.getOrderingKey()), "key-" + (i / 5));
         }
         // Acknowledge the consumption of all messages at once
         consumer.acknowledgeCumulative(msg);
@@ -565,6 +1253,77 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         log.info("-- Exiting {} test --", methodName);
     }
 
+    @Test
+    public void testGrpcProducerWithServerSideBatchingAndCollidingSequenceIds() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap())
+                .toBuilder()
+                .setBatchingMaxMessages(2)
+                .setBatchingMaxPublishDelayMicros(100_000)
+                .build();
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        // The third message is delayed so it is published alone between two batches
+        for (int i = 1; i <= 5; i++) {
+            commandSend.onNext(newBatchableSend(i, i == 3));
+        }
+        for (int i = 1; i <= 5; i++) {
+            CommandSendReceipt receipt = sendResult.takeOneMessage().getSendReceipt();
+            assertEquals(receipt.getSequenceId(), i);
+            assertEquals(receipt.getMessageId().getBatchSize(), i == 3 ? 0 : 2);
+        }
+
+        // The client stops setting the sequence ids so the batching stops
+        for (int i = 0; i < 5; i++) {
+            commandSend.onNext(newBatchableSend(0, i == 2));
+        }
+        Set<Long> entryIds = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            CommandSendReceipt receipt = sendResult.takeOneMessage().getSendReceipt();
+            assertEquals(receipt.getSequenceId(), 0);
+            assertFalse(receipt.getMessageId().hasBatchSize());
+            assertTrue(entryIds.add(receipt.getMessageId().getEntryId()));
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        for (int i = 0; i < 10; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            assertNotNull(msg);
+        }
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    private static CommandSend newBatchableSend(long sequenceId, boolean delayed) {
+        MessageMetadata.Builder metadata = MessageMetadata.newBuilder()
+                .setPublishTime(System.currentTimeMillis())
+                .setProducerName("prod-name")
+                .setSequenceId(sequenceId);
+        if (delayed) {
+            metadata.setDeliverAtTime(System.currentTimeMillis());
+        }
+        return CommandSend.newBuilder()
+                .setSequenceId(sequenceId)
+                .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                        .setMetadata(metadata)
+                        .setPayload(ByteString.copyFromUtf8("my-message-" + sequenceId)))
+                .build();
+    }
+
     @Test
     public void testGrpcProducerSinglePayloadCompressAndPulsarConsumer() throws Exception {
         log.info("-- Starting {} test --", methodName);
@@ -724,6 +1483,79 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         log.info("-- Exiting {} test --", methodName);
     }
 
+    @Test
+    public void testGrpcProducerWithCompressionExecutor() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Restart the gRPC service with a compression executor
+        channel.shutdown();
+        channel.awaitTermination(30, TimeUnit.SECONDS);
+        grpcService.close();
+        grpcService = new GrpcService();
+        conf.getProperties().setProperty("grpcServiceNumCompressionThreads", "2");
+        try {
+            grpcService.initialize(conf);
+            grpcService.start(pulsar.getBrokerService());
+        } finally {
+            conf.getProperties().remove("grpcServiceNumCompressionThreads");
+        }
+        channel = NettyChannelBuilder
+                .forAddress("localhost", grpcService.getListenPort().orElse(-1))
+                .usePlaintext()
+                .negotiationType(NegotiationType.PLAINTEXT)
+                .build();
+        stub = PulsarGrpc.newStub(channel);
+
+        Consumer<byte[]> consumer = pulsarClient.newConsumer().topic("persistent://my-property/my-ns/my-topic1")
+                .subscriptionName("my-subscriber-name").subscribe();
+
+        CommandProducer producer = Commands.newProducer("persistent://my-property/my-ns/my-topic1",
+                "test", Collections.emptyMap());
+
+        PulsarGrpc.PulsarStub producerStub = Commands.attachProducerParams(stub, producer);
+        TestStreamObserver<SendResult> sendResult = TestStreamObserver.create();
+        StreamObserver<CommandSend> commandSend = producerStub.produce(sendResult);
+
+        assertTrue(sendResult.takeOneMessage().hasProducerSuccess());
+
+        // Mix compressed and uncompressed messages to check that they are published in order
+        for (int i = 0; i < 50; i++) {
+            boolean compress = i % 3 == 0;
+            CommandSend.Builder builder = CommandSend.newBuilder()
+                    .setSequenceId(i)
+                    .setMetadataAndPayload(MetadataAndPayload.newBuilder()
+                            .setMetadata(MessageMetadata.newBuilder()
+                                    .setPublishTime(System.currentTimeMillis())
+                                    .setProducerName("prod-name")
+                                    .setCompression(compress ? CompressionType.ZSTD : CompressionType.NONE)
+                                    .setSequenceId(i))
+                            .setCompress(compress)
+                            .setPayload(ByteString.copyFromUtf8("my-message-" + i)));
+            commandSend.onNext(builder.build());
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(sendResult.takeOneMessage().getSendReceipt().getSequenceId(), i);
+        }
+
+        commandSend.onCompleted();
+        sendResult.waitForCompletion();
+
+        Message<byte[]> msg = null;
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 50; i++) {
+            msg = consumer.receive(5, TimeUnit.SECONDS);
+            String receivedMessage = new String(msg.getData());
+            log.debug("Received message: [{}]", receivedMessage);
+            String expectedMessage = "my-message-" + i;
+            testMessageOrderAndDuplicates(messageSet, receivedMessage, expectedMessage);
+        }
+        // Acknowledge the consumption of all messages at once
+        consumer.acknowledgeCumulative(msg);
+        consumer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
     @Test
     public void testRedeliverUnacknowledgedMessages() throws Exception {
         log.info("-- Starting {} test --", methodName);
@@ -896,6 +1728,187 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
         log.info("-- Exiting {} test --", methodName);
     }
 
+    @Test
+    public void testMessagesAckedByRangeAreNotRedelivered() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Shared, 0,
+                "test", 0);
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        for (int i = 0; i < 10; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        List<MessageIdData> messageIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            messageIds.add(consumeOutput.takeOneMessage().getMessage().getMessageId());
+        }
+        long ledgerId = messageIds.get(0).getLedgerId();
+        long firstEntryId = messageIds.get(0).getEntryId();
+
+        // Ack messages 0 to 3 by range, 5 and 7 by bitset and 9 by id
+        consumeInput.onNext(ConsumeInput.newBuilder()
+                .setAck(CommandAck.newBuilder()
+                        .setAckType(AckType.Individual)
+                        .addAckRanges(AckRange.newBuilder()
+                                .setLedgerId(ledgerId)
+                                .setFirstEntryId(firstEntryId)
+                                .setLastEntryId(firstEntryId + 3))
+                        .addAckRanges(AckRange.newBuilder()
+                                .setLedgerId(ledgerId)
+                                .setFirstEntryId(firstEntryId + 5)
+                                .addEntriesBitset(0b101)))
+                .build());
+        consumeInput.onNext(Commands.newAck(messageIds.get(9), AckType.Individual));
+
+        // Redeliver all unacknowledged messages
+        consumeInput.onNext(Commands.newRedeliverUnacknowledgedMessages());
+
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i : new int[] {4, 6, 8}) {
+            CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+            testMessageOrderAndDuplicates(messageSet, getFirstPayloadInBatch(message), "my-message-" + i);
+        }
+
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        producer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testExclusiveAckOnDeliveryMessagesAreNotRedelivered() throws Exception {
+        testAckOnDeliveryMessagesAreNotRedelivered(CommandSubscribe.SubType.Exclusive);
+    }
+
+    @Test
+    public void testSharedAckOnDeliveryMessagesAreNotRedelivered() throws Exception {
+        testAckOnDeliveryMessagesAreNotRedelivered(CommandSubscribe.SubType.Shared);
+    }
+
+    private void testAckOnDeliveryMessagesAreNotRedelivered(CommandSubscribe.SubType subType) throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", subType, 0, "test", 0)
+                .toBuilder()
+                .setAckOnDelivery(true)
+                .build();
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        for (int i = 0; i < 10; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        Set<String> messageSet = Sets.newHashSet();
+        for (int i = 0; i < 10; i++) {
+            CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+            testMessageOrderAndDuplicates(messageSet, getFirstPayloadInBatch(message), "my-message-" + i);
+        }
+
+        // Nothing to redeliver since the messages were acked when sent
+        consumeInput.onNext(Commands.newRedeliverUnacknowledgedMessages());
+        producer.send("my-message-10".getBytes());
+
+        CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+        assertEquals(getFirstPayloadInBatch(message), "my-message-10");
+
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        producer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
+    @Test
+    public void testUnackedAndNegativelyAckedMessagesAreRedelivered() throws Exception {
+        log.info("-- Starting {} test --", methodName);
+
+        // Lookup
+        PulsarGrpc.PulsarBlockingStub blockingStub = PulsarGrpc.newBlockingStub(channel);
+        blockingStub.lookupTopic(Commands.newLookup("persistent://my-property/my-ns/my-topic1", false));
+
+        // Subscribe
+        CommandSubscribe subscribe = Commands.newSubscribe("persistent://my-property/my-ns/my-topic1",
+                "my-subscriber-name", CommandSubscribe.SubType.Shared, 0, "test", 0)
+                .toBuilder()
+                .setAckTimeoutMillis(2000)
+                .setNegativeAckRedeliveryDelayMillis(200)
+                .build();
+        PulsarGrpc.PulsarStub consumerStub = Commands.attachConsumerParams(stub, subscribe);
+
+        TestStreamObserver<ConsumeOutput> consumeOutput = TestStreamObserver.create();
+        StreamObserver<ConsumeInput> consumeInput = consumerStub.consume(consumeOutput);
+
+        assertTrue(consumeOutput.takeOneMessage().hasSubscribeSuccess());
+
+        Producer<byte[]> producer = pulsarClient.newProducer()
+                .enableBatching(false)
+                .topic("persistent://my-property/my-ns/my-topic1")
+                .create();
+        for (int i = 0; i < 3; i++) {
+            String message = "my-message-" + i;
+            producer.send(message.getBytes());
+        }
+
+        List<MessageIdData> messageIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            messageIds.add(consumeOutput.takeOneMessage().getMessage().getMessageId());
+        }
+
+        // Ack message 0, nack message 1 and let message 2 time out
+        consumeInput.onNext(Commands.newAck(messageIds.get(0), AckType.Individual));
+        consumeInput.onNext(ConsumeInput.newBuilder()
+                .setNegativeAck(CommandNegativeAck.newBuilder().addMessageIds(messageIds.get(1)))
+                .build());
+
+        CommandMessage message = consumeOutput.takeOneMessage().getMessage();
+        assertEquals(getFirstPayloadInBatch(message), "my-message-1");
+        assertEquals(message.getRedeliveryCount(), 1);
+        consumeInput.onNext(Commands.newAck(message.getMessageId(), AckType.Individual));
+
+        message = consumeOutput.takeOneMessage().getMessage();
+        assertEquals(getFirstPayloadInBatch(message), "my-message-2");
+        assertEquals(message.getRedeliveryCount(), 1);
+        consumeInput.onNext(Commands.newAck(message.getMessageId(), AckType.Individual));
+
+        consumeInput.onCompleted();
+        consumeOutput.waitForCompletion();
+        producer.close();
+        log.info("-- Exiting {} test --", methodName);
+    }
+
     @Test
     public void testGetLastMessageId() throws Exception {
         log.info("-- Starting {} test --", methodName);
@@ -1291,6 +2304,10 @@ public class ProducerConsumerCompatibilityTest extends ProducerConsumerBase {
             return poll;
         }
 
+        public T pollOneMessage(long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.poll(timeout, unit);
+        }
+
         public void waitForError() throws InterruptedException, TimeoutException, ExecutionException {
             error.get(TIMEOUT, TimeUnit.SECONDS);
         }
@@ -0,0 +1,86 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link PublishBufferLimiter}.
+ */
+public class PublishBufferLimiterTest {
+
+    @Test
+    public void testPausedAtMaxAndResumedBelowHalf() {
+        PublishBufferLimiter limiter = new PublishBufferLimiter(100);
+        AtomicInteger transitions = new AtomicInteger();
+        limiter.addListener(transitions::incrementAndGet);
+
+        limiter.add(60);
+        assertFalse(limiter.isPaused());
+        limiter.add(40);
+        assertTrue(limiter.isPaused());
+        assertEquals(transitions.get(), 1);
+        limiter.add(10);
+        assertEquals(transitions.get(), 1);
+
+        limiter.remove(60);
+        assertTrue(limiter.isPaused());
+        limiter.remove(1);
+        assertFalse(limiter.isPaused());
+        assertEquals(limiter.getPendingBytes(), 49);
+        assertEquals(transitions.get(), 2);
+    }
+
+    @Test
+    public void testDisabledLimitNeverPauses() {
+        PublishBufferLimiter limiter = new PublishBufferLimiter(0);
+        limiter.add(Integer.MAX_VALUE);
+        assertFalse(limiter.isPaused());
+        assertEquals(limiter.getPendingBytes(), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        PublishBufferLimiter limiter = new PublishBufferLimiter(1000);
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    for (int j = 0; j < 10_000; j++) {
+                        limiter.add(100);
+                        limiter.remove(100);
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(limiter.getPendingBytes(), 0);
+        assertFalse(limiter.isPaused());
+    }
+}
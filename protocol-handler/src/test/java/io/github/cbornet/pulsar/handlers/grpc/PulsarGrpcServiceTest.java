@@ -36,6 +36,8 @@ import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
 import io.github.cbornet.pulsar.handlers.grpc.api.PulsarGrpc;
 import io.github.cbornet.pulsar.handlers.grpc.api.SendResult;
 import io.github.cbornet.pulsar.handlers.grpc.api.ServerError;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionInput;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
 import io.github.cbornet.pulsar.handlers.grpc.api.TxnAction;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
@@ -151,6 +153,7 @@ public class PulsarGrpcServiceTest {
     private NamespaceResources namespaceResources;
     protected NamespaceService namespaceService;
     private TransactionMetadataStoreService transactionMetadataStoreService;
+    private PublishBufferLimiter publishBufferLimiter;
 
     protected final String successTopicName = "persistent://prop/use/ns-abc/successTopic";
     private final String failTopicName = "persistent://prop/use/ns-abc/failTopic";
@@ -227,9 +230,11 @@ public class PulsarGrpcServiceTest {
 
         String serverName = InProcessServerBuilder.generateName();
 
+        publishBufferLimiter = new PublishBufferLimiter(svcConfig.getMaxMessagePublishBufferSizeInMB() * 1024L * 1024L);
         server = InProcessServerBuilder.forName(serverName)
                 .addService(ServerInterceptors.intercept(
-                        new PulsarGrpcService(brokerService, svcConfig, new NioEventLoopGroup()),
+                        new PulsarGrpcService(brokerService, svcConfig, new NioEventLoopGroup(), null, null, null,
+                                publishBufferLimiter).serviceDefinition(),
                         Collections.singletonList(new GrpcServerInterceptor())
                 ))
                 .build();
@@ -466,6 +471,7 @@ public class PulsarGrpcServiceTest {
 
         CommandProducer producerParams = Commands.newProducer(successTopicName, null, Collections.emptyMap());
         verifyProduceFails(producerParams, Status.PERMISSION_DENIED, ServerError.AuthorizationError);
+        assertEquals(publishBufferLimiter.getListenerCount(), 0);
     }
 
     @Test
@@ -930,6 +936,7 @@ public class PulsarGrpcServiceTest {
         PersistentTopic topicRef = (PersistentTopic) brokerService.getTopicReference(encryptionRequiredTopicName).get();
         assertNotNull(topicRef);
         assertEquals(topicRef.getProducers().size(), 0);
+        assertEquals(publishBufferLimiter.getListenerCount(), 0);
     }
 
     @Test
@@ -1115,6 +1122,47 @@ public class PulsarGrpcServiceTest {
         verifyConsumeFails(subscribe, Status.INVALID_ARGUMENT, ServerError.InvalidTopicName);
     }
 
+    @Test
+    public void testInvalidTopicOnSession() throws Exception {
+        String invalidTopicName = "xx/ass/aa/aaa";
+
+        TestStreamObserver<SessionOutput> sessionOutput = TestStreamObserver.create();
+        StreamObserver<SessionInput> sessionInput = stub.session(sessionOutput);
+
+        CommandProducer producerParams = Commands.newProducer(invalidTopicName, "prod-name", Collections.emptyMap());
+        sessionInput.onNext(Commands.newSessionProducer(1, producerParams));
+        CommandSubscribe subscribe = Commands.newSubscribe(invalidTopicName, "test-subscription", SubType.Exclusive, 0,
+                "consumerName", 0 /*avoid reseting cursor*/);
+        sessionInput.onNext(Commands.newSessionSubscribe(1, subscribe));
+
+        SessionOutput output = sessionOutput.takeOneMessage();
+        assertTrue(output.hasProducerClosed());
+        assertEquals(output.getProducerClosed().getProducerId(), 1);
+        assertEquals(output.getProducerClosed().getError(), ServerError.InvalidTopicName);
+
+        output = sessionOutput.takeOneMessage();
+        assertTrue(output.hasConsumerClosed());
+        assertEquals(output.getConsumerClosed().getConsumerId(), 1);
+        assertEquals(output.getConsumerClosed().getError(), ServerError.InvalidTopicName);
+
+        // The failed producer and consumer don't close the session
+        sessionInput.onCompleted();
+        sessionOutput.waitForCompletion();
+        assertNull(sessionOutput.pollOneMessage());
+    }
+
+    @Test
+    public void testDuplicateProducerIdOnSession() throws Exception {
+        TestStreamObserver<SessionOutput> sessionOutput = TestStreamObserver.create();
+        StreamObserver<SessionInput> sessionInput = stub.session(sessionOutput);
+
+        CommandProducer producerParams = Commands.newProducer(successTopicName, "prod-name", Collections.emptyMap());
+        sessionInput.onNext(Commands.newSessionProducer(1, producerParams));
+        sessionInput.onNext(Commands.newSessionProducer(1, producerParams));
+
+        assertEquals(Status.fromThrowable(sessionOutput.waitForError()).getCode(), Status.Code.INVALID_ARGUMENT);
+    }
+
     @Test
     public void testDelayedClosedProducer() throws Exception {
         CompletableFuture<Topic> delayFuture = new CompletableFuture<>();
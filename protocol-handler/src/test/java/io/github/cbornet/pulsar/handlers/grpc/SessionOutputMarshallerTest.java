@@ -0,0 +1,106 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import io.github.cbornet.pulsar.handlers.grpc.api.ConsumeOutput;
+import io.github.cbornet.pulsar.handlers.grpc.api.MessageIdData;
+import io.github.cbornet.pulsar.handlers.grpc.api.PayloadType;
+import io.github.cbornet.pulsar.handlers.grpc.api.SessionOutput;
+import io.grpc.Drainable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link SessionOutputMarshaller}.
+ */
+public class SessionOutputMarshallerTest {
+
+    private final SessionOutputMarshaller marshaller = new SessionOutputMarshaller();
+
+    @Test
+    public void testStreamConsumeOutput() throws Exception {
+        ByteBuf data = Unpooled.copiedBuffer("test-data", StandardCharsets.UTF_8);
+        MessageIdData.Builder messageId = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(3);
+        long[] ackSet = new long[] {7L};
+        SessionOutput expected = Commands.newSessionConsumeOutput(Long.MAX_VALUE,
+                Commands.newMessage(messageId, 4, data, ackSet, PayloadType.BINARY));
+
+        ConsumeOutputFrame consumeOutput = ConsumeOutputFrame.newMessage(PayloadType.BINARY, 1, 2, 3, 4, ackSet, data);
+        SessionOutputFrame frame = SessionOutputFrame.newConsumeOutput(Long.MAX_VALUE, consumeOutput);
+        assertEquals(frame.toSessionOutput(), expected);
+
+        InputStream stream = marshaller.stream(frame);
+        consumeOutput.release();
+        assertEquals(data.refCnt(), 2);
+
+        assertTrue(stream instanceof Drainable);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(((Drainable) stream).drainTo(out), expected.getSerializedSize());
+        stream.close();
+        assertEquals(data.refCnt(), 1);
+
+        assertEquals(SessionOutput.parseFrom(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void testStreamPackedConsumeOutput() throws Exception {
+        ByteBuf data1 = Unpooled.copiedBuffer("test-data-1", StandardCharsets.UTF_8);
+        ByteBuf data2 = Unpooled.directBuffer(1000).writeBytes(new byte[1000]);
+        MessageIdData.Builder messageId1 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(2).setPartition(-1);
+        MessageIdData.Builder messageId2 = MessageIdData.newBuilder().setLedgerId(1).setEntryId(3).setPartition(-1);
+        SessionOutput expected = Commands.newSessionConsumeOutput(1, Commands.newMessages(Arrays.asList(
+                Commands.newCommandMessage(messageId1, 0, data1, null, PayloadType.BINARY),
+                Commands.newCommandMessage(messageId2, 0, data2.duplicate(), null, PayloadType.BINARY))));
+
+        ConsumeOutputFrame.MessagesBuilder builder = new ConsumeOutputFrame.MessagesBuilder();
+        builder.add(PayloadType.BINARY, 1, 2, -1, 0, null, data1);
+        builder.add(PayloadType.BINARY, 1, 3, -1, 0, null, data2);
+        ConsumeOutputFrame consumeOutput = builder.build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = marshaller.stream(SessionOutputFrame.newConsumeOutput(1, consumeOutput))) {
+            ((Drainable) stream).drainTo(out);
+        }
+        consumeOutput.release();
+        assertEquals(data1.refCnt(), 1);
+        assertEquals(data2.refCnt(), 1);
+
+        assertEquals(SessionOutput.parseFrom(out.toByteArray()), expected);
+        data2.release();
+    }
+
+    @Test
+    public void testStreamSessionOutput() throws Exception {
+        SessionOutput expected = Commands.newSendPermits(1, 10);
+        try (InputStream stream = marshaller.stream(SessionOutputFrame.of(expected))) {
+            assertEquals(marshaller.parse(stream).getOutput(), expected);
+        }
+
+        ConsumeOutput consumeOutput = ConsumeOutput.getDefaultInstance();
+        expected = Commands.newSessionConsumeOutput(2, consumeOutput);
+        SessionOutputFrame frame = SessionOutputFrame.newConsumeOutput(2, ConsumeOutputFrame.of(consumeOutput));
+        try (InputStream stream = marshaller.stream(frame)) {
+            assertEquals(marshaller.parse(stream).getOutput(), expected);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.cbornet.pulsar.handlers.grpc;
+
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.util.collections.ConcurrentLongLongPairHashMap;
+import org.apache.pulsar.broker.service.Consumer;
+import org.apache.pulsar.common.api.proto.CommandAck;
+import org.apache.pulsar.common.api.proto.MessageIdData;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests for {@link UnackedMessageTracker}.
+ */
+public class UnackedMessageTrackerTest {
+
+    private Consumer consumer;
+    private ConcurrentLongLongPairHashMap pendingAcks;
+
+    @BeforeMethod
+    public void setup() {
+        consumer = mock(Consumer.class);
+        pendingAcks = new ConcurrentLongLongPairHashMap();
+        doReturn(pendingAcks).when(consumer).getPendingAcks();
+    }
+
+    @Test
+    public void testUnackedMessagesRedeliveredAfterAckTimeout() {
+        UnackedMessageTracker tracker = newTracker(300, 0);
+        sendMessages(tracker, 1, 2, 3);
+        CommandAck ack = new CommandAck().setAckType(CommandAck.AckType.Individual);
+        ack.addMessageId().setLedgerId(1).setEntryId(2);
+        tracker.acked(ack);
+        pendingAcks.remove(1, 2);
+
+        tick(tracker, 2);
+        verify(consumer, never()).redeliverUnacknowledgedMessages(anyList());
+
+        tick(tracker, 1);
+        assertEquals(captureRedeliveredEntryIds(1), Arrays.asList(1L, 3L));
+        assertEquals(tracker.size(), 0);
+    }
+
+    @Test
+    public void testPartiallyAckedBatchStillTracked() {
+        UnackedMessageTracker tracker = newTracker(300, 0);
+        sendMessages(tracker, 1, 2);
+        CommandAck ack = new CommandAck().setAckType(CommandAck.AckType.Individual);
+        ack.addMessageId().setLedgerId(1).setEntryId(1).addAckSet(~1L);
+        ack.addMessageId().setLedgerId(1).setEntryId(2);
+        tracker.acked(ack);
+        pendingAcks.remove(1, 2);
+        assertEquals(tracker.size(), 1);
+
+        tick(tracker, 3);
+        assertEquals(captureRedeliveredEntryIds(1), Arrays.asList(1L));
+        assertEquals(tracker.size(), 0);
+    }
+
+    @Test
+    public void testNegativeAckedMessageRedeliveredAfterDelay() {
+        UnackedMessageTracker tracker = newTracker(1000, 100);
+        sendMessages(tracker, 1, 2);
+        tracker.negativeAcked(1, 2);
+
+        tick(tracker, 1);
+        assertEquals(captureRedeliveredEntryIds(1), Arrays.asList(2L));
+
+        // The ack timeout of the negatively acked message was replaced by the negative ack delay
+        tick(tracker, 8);
+        verify(consumer, times(1)).redeliverUnacknowledgedMessages(anyList());
+        tick(tracker, 1);
+        assertEquals(captureRedeliveredEntryIds(2), Arrays.asList(1L));
+    }
+
+    @Test
+    public void testAckTimeoutLongerThanWheelRound() {
+        // More ticks than the wheel size
+        UnackedMessageTracker tracker = newTracker(100_000, 0);
+        sendMessages(tracker, 1);
+
+        tick(tracker, 999);
+        verify(consumer, never()).redeliverUnacknowledgedMessages(anyList());
+        tick(tracker, 1);
+        assertEquals(captureRedeliveredEntryIds(1), Arrays.asList(1L));
+    }
+
+    @Test
+    public void testRemovedConsumerClearsTracker() {
+        UnackedMessageTracker tracker = newTracker(100, 0);
+        sendMessages(tracker, 1);
+        tracker.consumerRemoved();
+        sendMessages(tracker, 2);
+
+        assertEquals(tracker.size(), 0);
+        tick(tracker, 1);
+        verify(consumer, never()).redeliverUnacknowledgedMessages(anyList());
+    }
+
+    private UnackedMessageTracker newTracker(long ackTimeoutMillis, long negativeAckDelayMillis) {
+        return new UnackedMessageTracker(CompletableFuture.completedFuture(consumer), ackTimeoutMillis,
+                negativeAckDelayMillis);
+    }
+
+    private void sendMessages(UnackedMessageTracker tracker, long... entryIds) {
+        List<PositionImpl> positions = new ArrayList<>();
+        for (long entryId : entryIds) {
+            pendingAcks.put(1, entryId, 1, 0);
+            positions.add(PositionImpl.get(1, entryId));
+        }
+        tracker.entriesSent(positions);
+    }
+
+    private static void tick(UnackedMessageTracker tracker, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            tracker.tick();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> captureRedeliveredEntryIds(int calls) {
+        ArgumentCaptor<List<MessageIdData>> captor = ArgumentCaptor.forClass(List.class);
+        verify(consumer, times(calls)).redeliverUnacknowledgedMessages(captor.capture());
+        List<Long> entryIds = new ArrayList<>();
+        captor.getValue().forEach(messageId -> entryIds.add(messageId.getEntryId()));
+        entryIds.sort(null);
+        return entryIds;
+    }
+}